@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import de.thwildau.f4f.studycompanion.backend.BackendIO;
+import de.thwildau.f4f.studycompanion.datamodel.LocalDatabaseMigration;
 import de.thwildau.f4f.studycompanion.datamodel.User;
 import de.thwildau.f4f.studycompanion.notifications.NotificationOrganizer;
 import de.thwildau.f4f.studycompanion.sensors.SensorManagerBase;
@@ -41,8 +42,8 @@ public class StudyCompanion extends Application {
 
         RealmConfiguration realmConfig =
                 new RealmConfiguration.Builder()
-                        .schemaVersion(1)
-                        .deleteRealmIfMigrationNeeded()
+                        .schemaVersion(LocalDatabaseMigration.SCHEMA_VERSION)
+                        .migration(new LocalDatabaseMigration())
                         .allowWritesOnUiThread(true)
                         .build();
 
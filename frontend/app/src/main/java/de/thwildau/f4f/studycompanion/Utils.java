@@ -6,10 +6,12 @@ import android.net.ConnectivityManager;
 import android.text.Html;
 import android.text.SpannedString;
 import android.text.TextUtils;
+import android.util.JsonReader;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -292,7 +294,9 @@ public class Utils {
 
             // This problem led to many crashes during app development, so we send a log message to server,
             // to inform that this problem still occurs.
-            BackendIO.serverLog(Log.WARN, "Utils", "Unparseable Date Error: " + source + "\n" + Arrays.toString(Thread.currentThread().getStackTrace()));
+            // The stack trace is only created, if the message is not suppressed due to rate limiting.
+            BackendIO.serverLog(Log.WARN, "Utils", "Unparseable Date Error",
+                    () -> "Unparseable Date Error: " + source + "\n" + Arrays.toString(Thread.currentThread().getStackTrace()));
             return new Date();
         }
 
@@ -560,6 +564,52 @@ public class Utils {
         }
     }
 
+    /**
+     * Reads the next JSON object from a streaming JsonReader into a JSONObject.
+     */
+    public static JSONObject readJsonObject(JsonReader reader) throws IOException {
+        JSONObject res = new JSONObject();
+        reader.beginObject();
+        try {
+            while (reader.hasNext()) {
+                res.put(reader.nextName(), readJsonValue(reader));
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        reader.endObject();
+        return res;
+    }
+
+    private static Object readJsonValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readJsonObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readJsonValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
     public static class ObservableValue<T> {
         private final List<Observer<T>> observers =
                 new LinkedList<Observer<T>>();
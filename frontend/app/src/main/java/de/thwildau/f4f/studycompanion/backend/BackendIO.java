@@ -4,6 +4,9 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.JsonReader;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -13,21 +16,37 @@ import androidx.preference.PreferenceManager;
 
 import com.android.volley.AuthFailureError;
 import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.NetworkResponse;
 import com.android.volley.Request;
-import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.JsonObjectRequest;
 import com.android.volley.toolbox.StringRequest;
-import com.android.volley.toolbox.Volley;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 import de.thwildau.f4f.studycompanion.BuildConfig;
 import de.thwildau.f4f.studycompanion.R;
@@ -39,12 +58,21 @@ import de.thwildau.f4f.studycompanion.datamodel.enums.Role;
 
 public class BackendIO {
 
-    // This increased timeout is currently only used for DataSync send requests.
+    // This increased timeout is currently only used for DataSync requests.
+    // Timeouts of segmented uploads are determined by the UploadSizeController instead.
     private static final int INCREASED_REQUEST_TIMEOUT_MS = 30000;
 
     private static final String SERVER_API_NAME = "f4f-server";
     private static final int MIN_SERVER_API_VERSION = 1;
 
+    // Request bodies are gzip-compressed for these endpoints, if the server advertises support for it
+    private static final List<RemoteDatasetType> COMPRESSED_REQUEST_TYPES = Arrays.asList(RemoteDatasetType.SYNC, RemoteDatasetType.LOG);
+
+    // Identical concurrent GET requests to these endpoints share one network call.
+    // GET requests to SYNC and TOKEN are not side effect free and are always sent.
+    private static final List<RemoteDatasetType> COALESCED_GET_TYPES = Arrays.asList(RemoteDatasetType.SCHEMAS, RemoteDatasetType.ENUMS,
+            RemoteDatasetType.ADTS, RemoteDatasetType.CONFIG, RemoteDatasetType.STRUCTURE, RemoteDatasetType.USERS, RemoteDatasetType.USER);
+
     public interface UserAuthenticationCallback {
         enum AuthenticationErrorType {
             AUTHENTICATION_ERROR,
@@ -95,6 +123,7 @@ public class BackendIO {
         TOKEN("token"),
         SYNC("sync"),
         CONFIG("config"),
+        STRUCTURE("structure"),
         LOG("log"),
         SENDMAIL("sendmail");
 
@@ -117,16 +146,70 @@ public class BackendIO {
         void onError(int errorStatusCode, String errorMessage);
     }
 
+    /**
+     * Callback of a journaled request, see {@link #sendRemoteDatasetJournaled(JSONObject, RemoteDatasetType, String, JournaledRequestCompletedCallback)}.
+     */
+    public interface JournaledRequestCompletedCallback extends RemoteRequestCompletedCallback {
+        /**
+         * The request could not be sent due to a connection problem. It has been stored and
+         * will be sent automatically as soon as the server is reachable again.
+         */
+        void onJournaled();
+    }
+
+    /**
+     * Callback of a conditional request, which only transfers a dataset if it differs from the locally stored version.
+     */
+    public interface ConditionalRequestCompletedCallback {
+        /**
+         * @param eTag The entity tag of the received dataset, or null if the server did not provide one.
+         */
+        void onResponse(JSONObject response, @Nullable String eTag);
+
+        /**
+         * The dataset has not changed since the version identified by the entity tag sent with the request.
+         */
+        void onNotModified();
+
+        void onError(int errorStatusCode, String errorMessage);
+    }
+
+    /**
+     * Writes the body of a streaming request directly to the connection's output stream.
+     * It is called on a background thread, so any Realm access needs its own Realm instance.
+     */
+    public interface StreamingRequestBodyWriter {
+        void writeBody(Writer writer) throws IOException;
+    }
+
+    /**
+     * Parses the body of a streaming response while it is being received.
+     * It is called on a background thread, so any Realm access needs its own Realm instance.
+     */
+    public interface StreamingResponseReader {
+        void readResponse(JsonReader reader) throws IOException;
+    }
+
 
     private static final String LOG_TAG = "BackendIO";
     private static final String ANON_KEY = "SQD3ib67ttxvkSpln2K7cw"; // as defined in spec, must be equal on server-side
 
 
-    private static RequestQueue requestQueue = null;
     private static User currentUser = null;
     private static String currentAuthToken = null;
     private static ArrayList<UserLoginStatusObserver> userLoginStatusObservers = new ArrayList<>();
     private static SharedPreferences sharedPreferences;
+    private static UploadSizeController uploadSizeController = null;
+    private static boolean serverAcceptsGzipRequests = false;
+    private static boolean serverAcceptsBinarySensorData = false;
+    private static boolean serverProvidesStructureSnapshot = false;
+    private static boolean serverProvidesSyncRangeHashes = false;
+    private static LogShipper logShipper = null;
+    private static OfflineRequestJournal offlineRequestJournal = null;
+    private static final LogRateLimiter logRateLimiter = new LogRateLimiter();
+    private static final EndpointMetrics endpointMetrics = new EndpointMetrics();
+    private static final InFlightRequests<RemoteRequestCompletedCallback> inFlightGets = new InFlightRequests<>();
+    private static final InFlightRequests<ConditionalRequestCompletedCallback> inFlightConditionalGets = new InFlightRequests<>();
 
 
     /**
@@ -136,6 +219,10 @@ public class BackendIO {
     private static class JsonObjectAuthRequest extends JsonObjectRequest {
         private String customToken = null;
         private boolean authorizationRequired = true;
+        private boolean anonymous = false;
+        private boolean compressBody = false;
+        private RemoteDatasetType datasetType = null;
+        private int bodyBytes = 0;
 
         public JsonObjectAuthRequest(int method, String url, @Nullable JSONObject jsonRequest, Response.Listener<JSONObject> listener, @Nullable Response.ErrorListener errorListener) {
             super(method, url, jsonRequest, listener, errorListener);
@@ -153,9 +240,79 @@ public class BackendIO {
             this.authorizationRequired = authorizationRequired;
         }
 
+        /**
+         * An anonymous request is sent without authentication token, even if a user is logged in.
+         */
+        public void setAnonymous(boolean anonymous) {
+            this.anonymous = anonymous;
+        }
+
+        public void setCompressBody(boolean compressBody) {
+            this.compressBody = compressBody;
+        }
+
+        public boolean isCompressBody() {
+            return compressBody;
+        }
+
+        /**
+         * Records latency, sizes and status of this request in the {@link EndpointMetrics} of the given endpoint.
+         */
+        public void setDatasetType(RemoteDatasetType datasetType) {
+            this.datasetType = datasetType;
+        }
+
+        @Override
+        public byte[] getBody() {
+            byte[] body = super.getBody();
+            if (!compressBody || body == null) {
+                bodyBytes = body != null ? body.length : 0;
+                return body;
+            }
+
+            try {
+                ByteArrayOutputStream compressedBody = new ByteArrayOutputStream(body.length / 4);
+                try (GZIPOutputStream gzipStream = new GZIPOutputStream(compressedBody)) {
+                    gzipStream.write(body);
+                }
+                bodyBytes = compressedBody.size();
+                return compressedBody.toByteArray();
+            } catch (IOException e) {
+                e.printStackTrace(); // shouldn't happen for in-memory streams
+                bodyBytes = body.length;
+                return body;
+            }
+        }
+
+        @Override
+        protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+            recordResponse(response);
+            return super.parseNetworkResponse(response);
+        }
+
+        @Override
+        protected VolleyError parseNetworkError(VolleyError volleyError) {
+            if (datasetType != null) {
+                NetworkResponse response = volleyError.networkResponse;
+                endpointMetrics.record(datasetType, volleyError.getNetworkTimeMs(), bodyBytes,
+                        response != null && response.data != null ? response.data.length : 0,
+                        response != null ? response.statusCode : -1,
+                        getRetryPolicy().getCurrentRetryCount());
+            }
+            return super.parseNetworkError(volleyError);
+        }
+
+        protected void recordResponse(NetworkResponse response) {
+            if (datasetType != null) {
+                endpointMetrics.record(datasetType, response.networkTimeMs, bodyBytes,
+                        response.data != null ? response.data.length : 0,
+                        response.statusCode, getRetryPolicy().getCurrentRetryCount());
+            }
+        }
+
         @Override
         public Map<String, String> getHeaders() throws AuthFailureError {
-            String token = customToken != null ? customToken : currentAuthToken;
+            String token = anonymous ? null : customToken != null ? customToken : currentAuthToken;
             Map<String, String> headers = new HashMap<>();
             if ((null == token || token.isEmpty())) {
                 // Auth token not available:
@@ -167,8 +324,99 @@ public class BackendIO {
                 headers.put("Authorization", "Bearer " + token);
             }
 
+            if (compressBody) {
+                headers.put("Content-Encoding", "gzip");
+            }
+
+            return headers;
+        }
+    }
+
+    /**
+     * Callbacks of GET requests, which are in flight, by request key.
+     * Identical requests issued while the first one is pending are served from its response.
+     */
+    private static class InFlightRequests<C> {
+        private final Map<String, List<C>> pendingCallbacks = new HashMap<>();
+
+        /**
+         * @return true, if no identical request is in flight and the request has to be sent.
+         */
+        synchronized boolean register(String requestKey, C callback) {
+            List<C> callbacks = pendingCallbacks.get(requestKey);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return false;
+            }
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            pendingCallbacks.put(requestKey, callbacks);
+            return true;
+        }
+
+        /**
+         * @return All callbacks waiting for the response of the request.
+         */
+        synchronized List<C> complete(@Nullable String requestKey, C callback) {
+            List<C> callbacks = requestKey != null ? pendingCallbacks.remove(requestKey) : null;
+            return callbacks != null ? callbacks : Collections.singletonList(callback);
+        }
+    }
+
+    private static String getInFlightRequestKey(String url, @Nullable JSONObject requestHeader) {
+        return url + "\n" + (requestHeader != null ? requestHeader.toString() : "") + "\n" + currentAuthToken;
+    }
+
+    /**
+     * A GET request, which sends the entity tag of the locally stored dataset in the If-None-Match header.
+     * A "304 Not Modified" response is delivered to the callback without any body parsing.
+     */
+    private static class ConditionalJsonObjectRequest extends JsonObjectAuthRequest {
+        private final String eTag;
+        private final ConditionalRequestCompletedCallback callback;
+        private volatile boolean notModified = false;
+        private volatile String responseETag = null;
+
+        public ConditionalJsonObjectRequest(String url, @Nullable String eTag, ConditionalRequestCompletedCallback callback, Response.ErrorListener errorListener) {
+            super(Request.Method.GET, url, null, null, errorListener);
+            this.eTag = eTag;
+            this.callback = callback;
+
+            // Volley's HTTP cache would answer a 304 response with the cached body, which would then be parsed and processed again
+            setShouldCache(false);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            Map<String, String> headers = super.getHeaders();
+            if (eTag != null) {
+                headers.put("If-None-Match", eTag);
+            }
             return headers;
         }
+
+        @Override
+        protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+            if (response.notModified || response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                recordResponse(response);
+                notModified = true;
+                return Response.success(null, null);
+            }
+
+            if (response.headers != null) {
+                responseETag = response.headers.get("ETag");
+            }
+            return super.parseNetworkResponse(response);
+        }
+
+        @Override
+        protected void deliverResponse(JSONObject response) {
+            if (notModified) {
+                callback.onNotModified();
+            } else {
+                callback.onResponse(response, responseETag);
+            }
+        }
     }
 
     public static String getServerUrl() {
@@ -276,8 +524,16 @@ public class BackendIO {
                 callback.onError(0, "Server API version is too old.");
             else if (minAppVersion > BuildConfig.VERSION_CODE)
                 callback.onError(0, "You need to update the app to proceed.");
-            else
+            else {
+                // Older servers do not advertise supported request encodings and get uncompressed bodies
+                JSONArray requestEncodings = response.optJSONArray("request_encodings");
+                serverAcceptsGzipRequests = requestEncodings != null && requestEncodings.toString().contains("\"gzip\"");
+                JSONArray sensorDataEncodings = response.optJSONArray("sensor_data_encodings");
+                serverAcceptsBinarySensorData = sensorDataEncodings != null && sensorDataEncodings.toString().contains("\"" + SensorDataWireEncoder.ENCODING_NAME + "\"");
+                serverProvidesStructureSnapshot = response.optBoolean("structure_snapshot", false);
+                serverProvidesSyncRangeHashes = response.optBoolean("sync_range_hashes", false);
                 callback.onResponse(response);
+            }
 
 
         }, error -> {
@@ -288,15 +544,18 @@ public class BackendIO {
             callback.onError(statusCode, error.getMessage());
         });
 
-        requestQueue.add(request);
+        addRequest(request);
     }
 
     public static void initialize(Context context) {
-        if (requestQueue == null) {
-            // create one app-wide shared queue for handling backend server requests
-            requestQueue = Volley.newRequestQueue(context);
+        // create app-wide shared queues for handling backend server requests, one for each request lane
+        for (RequestLane lane : RequestLane.values()) {
+            lane.initialize(context);
         }
 
+        // replays requests journaled during a previous app session
+        getOfflineRequestJournal();
+
         // Read auth token from preferences
         sharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
         String token = sharedPreferences.getString(context.getResources().getString(R.string.backendAuthToken), null);
@@ -680,7 +939,8 @@ public class BackendIO {
                             }
                         }
                 );
-        addRequest(jsonObjectRequest);
+        jsonObjectRequest.setDatasetType(datasetType);
+        addRequest(jsonObjectRequest, RequestLane.of(datasetType), false);
     }
 
     public static void sendRemoteDatasetAsync(JSONObject dataset, RemoteDatasetType datasetType, RemoteRequestCompletedCallback responseCallback) {
@@ -688,12 +948,15 @@ public class BackendIO {
     }
 
     public static void sendRemoteDatasetAsync(JSONObject dataset, RemoteDatasetType datasetType, String urlParameter, RemoteRequestCompletedCallback responseCallback) {
+        final String originalUrlParameter = urlParameter;
         if (urlParameter == null) {
             urlParameter = "";
         } else {
             urlParameter = "/" + urlParameter;
         }
 
+        final boolean compressBody = serverAcceptsGzipRequests && COMPRESSED_REQUEST_TYPES.contains(datasetType);
+
         int method = dataset.has("id") ? Request.Method.PUT : Request.Method.POST; // Modify or create dataset depends on whether 'id' is going to be submitted!
         JsonObjectAuthRequest jsonObjectRequest = new JsonObjectAuthRequest
                 (
@@ -709,14 +972,24 @@ public class BackendIO {
                         new Response.ErrorListener() {
                             @Override
                             public void onErrorResponse(VolleyError error) {
-                                handleRequestError(error);
                                 int statusCode = -1;
                                 if (error.networkResponse != null)
                                     statusCode = error.networkResponse.statusCode;
+
+                                if (compressBody && statusCode == 415) {
+                                    // Server does not accept compressed bodies after all, so send it again uncompressed
+                                    serverAcceptsGzipRequests = false;
+                                    sendRemoteDatasetAsync(dataset, datasetType, originalUrlParameter, responseCallback);
+                                    return;
+                                }
+
+                                handleRequestError(error);
                                 responseCallback.onError(statusCode, error.getMessage());
                             }
                         }
                 );
+        jsonObjectRequest.setCompressBody(compressBody);
+        jsonObjectRequest.setDatasetType(datasetType);
 
         boolean increaseTimeout = false;
         if (datasetType == RemoteDatasetType.SYNC) {
@@ -724,10 +997,298 @@ public class BackendIO {
             // since these could contain larger amounts of data.
             increaseTimeout = true;
         }
-        addRequest(jsonObjectRequest, increaseTimeout);
+        addRequest(jsonObjectRequest, RequestLane.of(datasetType), increaseTimeout);
+    }
+
+
+    /**
+     * Same as {@link #sendRemoteDatasetAsync(JSONObject, RemoteDatasetType, String, RemoteRequestCompletedCallback)},
+     * but if the request fails due to a connection problem, it is stored in the {@link OfflineRequestJournal}
+     * and sent automatically when the server is reachable again. A newer request for the same dataset
+     * replaces a pending one.
+     * <p>
+     * Must only be used for idempotent requests, i.e. modifying an existing dataset (dataset has 'id') as a whole.
+     */
+    public static void sendRemoteDatasetJournaled(JSONObject dataset, RemoteDatasetType datasetType, String urlParameter, JournaledRequestCompletedCallback responseCallback) {
+        if (!dataset.has("id")) {
+            throw new IllegalArgumentException("Only modifications of existing datasets can be journaled.");
+        }
+
+        User user = currentUser;
+        if (user == null) {
+            responseCallback.onError(-1, "Authorization required.");
+            return;
+        }
+
+        OfflineRequestJournal journal = getOfflineRequestJournal();
+        if (journal.hasPendingRequest(datasetType, urlParameter, dataset)) {
+            // An older request for this dataset is still waiting, so this one must not overtake it
+            journal.add(datasetType, urlParameter, dataset, user);
+            responseCallback.onJournaled();
+            return;
+        }
+
+        sendRemoteDatasetAsync(dataset, datasetType, urlParameter, new RemoteRequestCompletedCallback() {
+            @Override
+            public void onResponse(JSONObject response) {
+                responseCallback.onResponse(response);
+            }
+
+            @Override
+            public void onError(int errorStatusCode, String errorMessage) {
+                if (isRetryableStatusCode(errorStatusCode)) {
+                    journal.add(datasetType, urlParameter, dataset, user);
+                    responseCallback.onJournaled();
+                } else {
+                    responseCallback.onError(errorStatusCode, errorMessage);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true, if a request failed with this status code due to connection problems or temporary server problems.
+     */
+    static boolean isRetryableStatusCode(int statusCode) {
+        return statusCode == -1 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
     }
 
+    private static synchronized OfflineRequestJournal getOfflineRequestJournal() {
+        if (offlineRequestJournal == null) {
+            offlineRequestJournal = new OfflineRequestJournal(StudyCompanion.getAppContext());
+        }
+        return offlineRequestJournal;
+    }
 
+    /**
+     * Sends a dataset to the server without building the whole request body in memory.
+     * The body is serialized by bodyWriter straight into the HTTP output stream
+     * (chunked transfer encoding), so the memory needed stays constant regardless of the payload size.
+     * The callback is invoked on the main thread, same as for regular requests.
+     */
+    public static void sendStreamingDatasetAsync(RemoteDatasetType datasetType, String urlParameter, StreamingRequestBodyWriter bodyWriter, RemoteRequestCompletedCallback responseCallback) {
+        sendStreamingDatasetAsync(datasetType, urlParameter, 0, bodyWriter, responseCallback);
+    }
+
+    /**
+     * Same as {@link #sendStreamingDatasetAsync(RemoteDatasetType, String, StreamingRequestBodyWriter, RemoteRequestCompletedCallback)},
+     * but the request timeout is adjusted to the expected transfer time of expectedBodyBytes,
+     * as estimated by the {@link UploadSizeController}.
+     */
+    public static void sendStreamingDatasetAsync(RemoteDatasetType datasetType, String urlParameter, long expectedBodyBytes, StreamingRequestBodyWriter bodyWriter, RemoteRequestCompletedCallback responseCallback) {
+        int timeoutMs = expectedBodyBytes > 0 ? getUploadSizeController().getTimeoutMs(expectedBodyBytes) : INCREASED_REQUEST_TIMEOUT_MS;
+        executeStreamingRequest("POST", datasetType, null, urlParameter, timeoutMs, bodyWriter, null, responseCallback);
+    }
+
+    /**
+     * @return true, if the server accepts SensorData uploads in the binary format of {@link SensorDataWireEncoder}.
+     * Otherwise, SensorData has to be uploaded as JSON.
+     */
+    public static boolean isBinarySensorDataAccepted() {
+        return serverAcceptsBinarySensorData;
+    }
+
+    /**
+     * @return true, if the server provides all structures (schemas, enums, ADTs and device config)
+     * as a single snapshot through the STRUCTURE endpoint.
+     */
+    public static boolean isStructureSnapshotProvided() {
+        return serverProvidesStructureSnapshot;
+    }
+
+    /**
+     * @return true, if the server provides hashes of the synchronized datasets by date range
+     * and accepts a list of days to restrict the download of a sync process to.
+     */
+    public static boolean isSyncRangeReconciliationSupported() {
+        return serverProvidesSyncRangeHashes;
+    }
+
+    public static synchronized UploadSizeController getUploadSizeController() {
+        if (uploadSizeController == null) {
+            uploadSizeController = new UploadSizeController();
+        }
+        return uploadSizeController;
+    }
+
+    /**
+     * Requests a dataset from the server and lets responseReader parse the response body
+     * incrementally while it is received, instead of loading it as one JSONObject.
+     * After the reader has consumed the body, responseCallback.onResponse() is invoked on the
+     * main thread with an empty JSONObject.
+     */
+    public static void getStreamingDatasetAsync(RemoteDatasetType datasetType, JSONObject requestHeader, String urlParameter, StreamingResponseReader responseReader, RemoteRequestCompletedCallback responseCallback) {
+        executeStreamingRequest("GET", datasetType, requestHeader, urlParameter, INCREASED_REQUEST_TIMEOUT_MS, null, responseReader, responseCallback);
+    }
+
+    private static void executeStreamingRequest(String method, RemoteDatasetType datasetType, JSONObject requestHeader, String urlParameter, int timeoutMs, StreamingRequestBodyWriter bodyWriter, StreamingResponseReader responseReader, RemoteRequestCompletedCallback responseCallback) {
+        if (urlParameter == null) {
+            urlParameter = "";
+        } else {
+            urlParameter = "/" + urlParameter;
+        }
+
+        final String url = getServerUrl() + datasetType.getEndpoint() + urlParameter;
+        final String token = currentAuthToken;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final boolean compressBody = bodyWriter != null && serverAcceptsGzipRequests && COMPRESSED_REQUEST_TYPES.contains(datasetType);
+        final RequestLane lane = RequestLane.of(datasetType);
+
+        if (Utils.nullOrEmpty(token)) {
+            mainHandler.post(() -> responseCallback.onError(-1, "Authorization required."));
+            return;
+        }
+
+        new Thread(() -> {
+            Process.setThreadPriority(lane.getThreadPriority());
+            try {
+                lane.acquireStreamingSlot();
+            } catch (InterruptedException e) {
+                mainHandler.post(() -> responseCallback.onError(-1, e.toString()));
+                return;
+            }
+
+            HttpURLConnection connection = null;
+            long startTime = System.currentTimeMillis();
+            long bodyBytes = 0;
+            long bodyWriteMs = 0;
+            int responseStatusCode = -1;
+            CountingInputStream responseStream = null;
+            try {
+                connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setRequestMethod(method);
+                connection.setConnectTimeout(timeoutMs);
+                connection.setReadTimeout(timeoutMs);
+                connection.setRequestProperty("Authorization", "Bearer " + token);
+
+                if (requestHeader != null) {
+                    Iterator<String> keys = requestHeader.keys();
+                    while (keys.hasNext()) {
+                        String key = keys.next();
+                        connection.setRequestProperty(key, requestHeader.getString(key));
+                    }
+                }
+
+                if (bodyWriter != null) {
+                    StreamingRequestBody body = StreamingRequestBody.write(connection, compressBody, bodyWriter);
+                    bodyBytes = body.getBytes();
+                    bodyWriteMs = body.getNetworkWriteMs();
+                }
+
+                long bodyWrittenTime = System.currentTimeMillis();
+                int statusCode = connection.getResponseCode();
+                responseStatusCode = statusCode;
+
+                if (bodyWriter != null && statusCode >= 200 && statusCode < 300) {
+                    getUploadSizeController().recordTransfer(bodyBytes, bodyWriteMs, System.currentTimeMillis() - bodyWrittenTime);
+                }
+                if (statusCode < 200 || statusCode >= 300) {
+                    String errorMessage = connection.getResponseMessage();
+                    mainHandler.post(() -> {
+                        if (compressBody && statusCode == 415) {
+                            // Server does not accept compressed bodies after all. The caller's retry will be sent uncompressed.
+                            serverAcceptsGzipRequests = false;
+                        }
+                        handleRequestError(statusCode);
+                        responseCallback.onError(statusCode, errorMessage);
+                    });
+                    return;
+                }
+
+                JSONObject response;
+                responseStream = new CountingInputStream(connection.getInputStream());
+                if (responseReader != null) {
+                    try (JsonReader reader = new JsonReader(new InputStreamReader(responseStream, StandardCharsets.UTF_8))) {
+                        responseReader.readResponse(reader);
+                    }
+                    response = new JSONObject();
+                } else {
+                    response = new JSONObject(readResponseBody(responseStream));
+                }
+
+                mainHandler.post(() -> responseCallback.onResponse(response));
+
+            } catch (IOException | JSONException | RuntimeException e) {
+                // Runtime exceptions of the body writer or response reader (e.g. a corrupt sensor column or a Realm error)
+                // are reported like connection errors, since an uncaught exception would kill the app process
+                // and the caller would never be notified
+                Log.w(LOG_TAG, "Streaming request to " + datasetType + " endpoint failed: " + e);
+                if (bodyWriter != null && e instanceof SocketTimeoutException) {
+                    getUploadSizeController().recordFailure();
+                }
+                mainHandler.post(() -> {
+                    handleRequestError(-1);
+                    responseCallback.onError(-1, e.toString());
+                });
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                long responseBytes = responseStream != null ? responseStream.getCount() : 0;
+                lane.recordStreamedBytes(bodyBytes, responseBytes);
+                endpointMetrics.record(datasetType, System.currentTimeMillis() - startTime, bodyBytes, responseBytes, responseStatusCode, 0);
+                lane.releaseStreamingSlot();
+            }
+        }).start();
+    }
+
+    /**
+     * Counts the bytes read from a response body.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    private static String readResponseBody(InputStream inputStream) throws IOException {
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            char[] buffer = new char[1024];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, count);
+            }
+        }
+        return body.toString();
+    }
+
+    /**
+     * Requests a dataset from the server.
+     * If an identical request (same URL, headers and auth token) of a side effect free endpoint is
+     * already in flight, no new request is sent and responseCallback is served from the pending response.
+     */
     public static void getRemoteDatasetAsync(RemoteDatasetType datasetType, JSONObject requestHeader, String urlParameter, RemoteRequestCompletedCallback responseCallback) {
         if (urlParameter == null) {
             urlParameter = "";
@@ -735,15 +1296,24 @@ public class BackendIO {
             urlParameter = "/" + urlParameter;
         }
 
+        final String url = getServerUrl() + datasetType.getEndpoint() + urlParameter;
+        final String requestKey = COALESCED_GET_TYPES.contains(datasetType) ? getInFlightRequestKey(url, requestHeader) : null;
+        if (requestKey != null && !inFlightGets.register(requestKey, responseCallback)) {
+            // identical request already in flight
+            return;
+        }
+
         JsonObjectAuthRequest jsonObjectRequest = new JsonObjectAuthRequest
                 (
                         Request.Method.GET,
-                        getServerUrl() + datasetType.getEndpoint() + urlParameter,
+                        url,
                         null,
                         new Response.Listener<JSONObject>() {
                             @Override
                             public void onResponse(JSONObject response) {
-                                responseCallback.onResponse(response);
+                                for (RemoteRequestCompletedCallback callback : inFlightGets.complete(requestKey, responseCallback)) {
+                                    callback.onResponse(response);
+                                }
                             }
                         },
                         new Response.ErrorListener() {
@@ -753,7 +1323,9 @@ public class BackendIO {
                                 int statusCode = -1;
                                 if (error.networkResponse != null)
                                     statusCode = error.networkResponse.statusCode;
-                                responseCallback.onError(statusCode, error.getMessage());
+                                for (RemoteRequestCompletedCallback callback : inFlightGets.complete(requestKey, responseCallback)) {
+                                    callback.onError(statusCode, error.getMessage());
+                                }
                             }
                         }
                 ) {
@@ -786,7 +1358,59 @@ public class BackendIO {
             }
         };
         jsonObjectRequest.setAuthorizationRequired(false);
-        addRequest(jsonObjectRequest);
+        jsonObjectRequest.setDatasetType(datasetType);
+        addRequest(jsonObjectRequest, RequestLane.of(datasetType), false);
+    }
+
+    /**
+     * Requests a dataset only if it has changed since the version identified by eTag.
+     * If eTag is null, the dataset is requested unconditionally.
+     */
+    public static void getConditionalDatasetAsync(RemoteDatasetType datasetType, @Nullable String eTag, ConditionalRequestCompletedCallback responseCallback) {
+        final String url = getServerUrl() + datasetType.getEndpoint();
+        final String requestKey = getInFlightRequestKey(url, null) + "\n" + eTag;
+        if (!inFlightConditionalGets.register(requestKey, responseCallback)) {
+            // identical request already in flight
+            return;
+        }
+
+        ConditionalJsonObjectRequest request = new ConditionalJsonObjectRequest(
+                url,
+                eTag,
+                new ConditionalRequestCompletedCallback() {
+                    @Override
+                    public void onResponse(JSONObject response, @Nullable String responseETag) {
+                        for (ConditionalRequestCompletedCallback callback : inFlightConditionalGets.complete(requestKey, responseCallback)) {
+                            callback.onResponse(response, responseETag);
+                        }
+                    }
+
+                    @Override
+                    public void onNotModified() {
+                        for (ConditionalRequestCompletedCallback callback : inFlightConditionalGets.complete(requestKey, responseCallback)) {
+                            callback.onNotModified();
+                        }
+                    }
+
+                    @Override
+                    public void onError(int errorStatusCode, String errorMessage) {
+                        for (ConditionalRequestCompletedCallback callback : inFlightConditionalGets.complete(requestKey, responseCallback)) {
+                            callback.onError(errorStatusCode, errorMessage);
+                        }
+                    }
+                },
+                error -> {
+                    handleRequestError(error);
+                    int statusCode = -1;
+                    if (error.networkResponse != null)
+                        statusCode = error.networkResponse.statusCode;
+                    for (ConditionalRequestCompletedCallback callback : inFlightConditionalGets.complete(requestKey, responseCallback)) {
+                        callback.onError(statusCode, error.getMessage());
+                    }
+                });
+        request.setAuthorizationRequired(false);
+        request.setDatasetType(datasetType);
+        addRequest(request, RequestLane.of(datasetType), false);
     }
 
     public static void getRemoteDatasetAsync(RemoteDatasetType datasetType, String urlParameter, RemoteRequestCompletedCallback responseCallback) {
@@ -797,31 +1421,90 @@ public class BackendIO {
         getRemoteDatasetAsync(datasetType, null, responseCallback);
     }
 
+    /**
+     * Logs a message to LogCat and to the server.
+     * Server log messages are rate limited by the {@link LogRateLimiter}
+     * and buffered and sent in batches by the {@link LogShipper}.
+     */
     public static void serverLog(int logPriority, String tag, String msg) {
-        JSONObject req = new JSONObject();
+        if (msg == null) {
+            msg = "(null)";
+        }
+
+        // Implicit log to LogCat
+        Log.println(logPriority, tag, msg);
 
+        if (logRateLimiter.tryAcquire(tag, null, msg)) {
+            getLogShipper().enqueue(logPriority, getCurrentUserId(), getLogPriorityPrefix(logPriority) + msg);
+        }
+    }
+
+    /**
+     * Same as {@link #serverLog(int, String, String)}, but the message is only built, if it is not
+     * suppressed by the rate limiter. This should be used for messages, which are expensive to build
+     * (e.g. stack traces) and might be logged repeatedly. For a suppressed message, only its fingerprint is logged to LogCat.
+     *
+     * @param fingerprint Identifies similar messages for rate limiting.
+     */
+    public static void serverLog(int logPriority, String tag, String fingerprint, Supplier<String> msgSupplier) {
+        if (!logRateLimiter.tryAcquire(tag, fingerprint, null)) {
+            Log.println(logPriority, tag, fingerprint + " (suppressed by rate limiting)");
+            return;
+        }
+
+        String msg = msgSupplier.get();
         if (msg == null) {
             msg = "(null)";
         }
 
-        String highPriorityStr = "";
+        // Implicit log to LogCat
+        Log.println(logPriority, tag, msg);
+
+        getLogShipper().enqueue(logPriority, getCurrentUserId(), getLogPriorityPrefix(logPriority) + msg);
+    }
+
+    private static String getLogPriorityPrefix(int logPriority) {
         switch (logPriority) {
             case Log.WARN:
-                highPriorityStr = "[WARNING] ";
-                break;
+                return "[WARNING] ";
             case Log.ERROR:
-                highPriorityStr = "[ERROR] ";
-                break;
+                return "[ERROR] ";
+            default:
+                return "";
         }
+    }
 
-        // Implicit log to LogCat
-        Log.println(logPriority, tag, msg);
+    /**
+     * Sends all buffered server log messages as soon as possible, e.g. while the connection is known to be up.
+     */
+    public static void flushServerLog() {
+        getLogShipper().flush();
+    }
 
-        if (currentUser == null) {
-            initialize(StudyCompanion.getAppContext());
+    private static synchronized LogShipper getLogShipper() {
+        if (logShipper == null) {
+            logShipper = new LogShipper(StudyCompanion.getAppContext(), logRateLimiter);
         }
+        return logShipper;
+    }
 
-        msg = highPriorityStr + msg;
+    private static String getCurrentUserId() {
+        User user = currentUser;
+        return user != null ? user.id : null;
+    }
+
+    /**
+     * Sends a batch of log lines as one log message to the server.
+     *
+     * @param userId ID of the user, who was logged in when the lines were logged, or null.
+     * If this user is not logged in anymore, the lines are sent anonymously, naming the user ID.
+     */
+    static void sendLogBatch(String msg, String userId, RemoteRequestCompletedCallback responseCallback) {
+        JSONObject req = new JSONObject();
+        boolean sendAsUser = userId != null && userId.equals(getCurrentUserId());
+        if (userId != null && !sendAsUser) {
+            msg = "[User " + userId + "] " + msg;
+        }
 
         try {
             req.put("msg", msg);
@@ -832,41 +1515,34 @@ public class BackendIO {
             req.put("client_version", (int) BuildConfig.VERSION_CODE);
             // keep (int) cast for compatibility when upgrading to higher target SDK!
 
-            if (currentUser == null) {
+            if (!sendAsUser) {
                 req.put("anon_key", ANON_KEY); // add anon key to allow logging message from unauthenticated user
 
-                JsonObjectRequest jsonObjectRequest = new JsonObjectRequest
-                        (Request.Method.POST, getServerUrl() + RemoteDatasetType.LOG.getEndpoint(), req, response -> {
-                        }, error -> {
-                        }); // ignore response or errors
+                JsonObjectAuthRequest jsonObjectRequest = new JsonObjectAuthRequest
+                        (Request.Method.POST, getServerUrl() + RemoteDatasetType.LOG.getEndpoint(), req,
+                                responseCallback::onResponse,
+                                error -> responseCallback.onError(error.networkResponse != null ? error.networkResponse.statusCode : -1, error.getMessage()));
+                jsonObjectRequest.setAuthorizationRequired(false);
+                jsonObjectRequest.setAnonymous(true);
+                jsonObjectRequest.setDatasetType(RemoteDatasetType.LOG);
 
-                addRequest(jsonObjectRequest);
+                addRequest(jsonObjectRequest, RequestLane.TELEMETRY, false);
             } else {
-                BackendIO.sendRemoteDatasetAsync(req, BackendIO.RemoteDatasetType.LOG, new BackendIO.RemoteRequestCompletedCallback() {
-                    @Override
-                    public void onResponse(JSONObject response) {
-                        // ignore response
-                    }
-
-                    @Override
-                    public void onError(int errorStatusCode, String errorMessage) {
-                        // ignore errors
-                    }
-                });
+                BackendIO.sendRemoteDatasetAsync(req, BackendIO.RemoteDatasetType.LOG, responseCallback);
             }
 
-
         } catch (Exception e) {
             e.printStackTrace();
+            responseCallback.onError(-1, e.toString());
         }
     }
 
     private static void addRequest(Request request) {
-        addRequest(request, false);
+        addRequest(request, RequestLane.INTERACTIVE, false);
     }
 
-    private static void addRequest(Request request, boolean increaseTimeout) {
-        if (requestQueue == null) {
+    private static void addRequest(Request request, RequestLane lane, boolean increaseTimeout) {
+        if (!lane.isInitialized()) {
             initialize(StudyCompanion.getAppContext());
         }
 
@@ -878,12 +1554,37 @@ public class BackendIO {
                     DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
         }
 
-        requestQueue.add(request);
+        lane.add(request);
 
     }
 
+    /**
+     * @return Latency, payload size and status code statistics of the requests to the dataset endpoints.
+     */
+    public static EndpointMetrics getEndpointMetrics() {
+        return endpointMetrics;
+    }
+
+    /**
+     * @return The queue latency of all request lanes, one line per lane.
+     */
+    public static String getRequestLaneReport() {
+        StringBuilder report = new StringBuilder();
+        for (RequestLane lane : RequestLane.values()) {
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append(lane.getQueueLatencyReport());
+        }
+        return report.toString();
+    }
+
     private static void handleRequestError(VolleyError error) {
-        if (error.networkResponse != null && error.networkResponse.statusCode == 401) {
+        handleRequestError(error.networkResponse != null ? error.networkResponse.statusCode : -1);
+    }
+
+    private static void handleRequestError(int statusCode) {
+        if (statusCode == 401) {
             // Computer says: "Unauthorized" - the auth token might have expired.
             Toast.makeText(StudyCompanion.getAppContext(), R.string.message_session_expired, Toast.LENGTH_LONG).show();
             logout();
@@ -0,0 +1,221 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Latency, payload size, status code and retry statistics of the requests to each {@link BackendIO.RemoteDatasetType} endpoint.
+ * <p>
+ * Values are recorded into fixed-bucket histograms held in primitive arrays, so recording a request
+ * does not allocate any objects. Snapshots and reports are only built on demand,
+ * e.g. for the developer screen or for attaching them to the server log.
+ */
+public class EndpointMetrics {
+
+    // Upper bounds (inclusive) of the histogram buckets. Larger values are counted in an additional overflow bucket.
+    private static final long[] LATENCY_BUCKETS_MS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+    private static final long[] SIZE_BUCKETS_BYTES = {256, 1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+
+    // Status codes counted separately. All others are counted by their class (-1 for requests without response).
+    private static final int[] TRACKED_STATUS_CODES = {200, 304, 400, 401, 403, 404, 408, 413, 415, 429, 500, 502, 503, 504};
+    private static final int STATUS_NO_RESPONSE = TRACKED_STATUS_CODES.length;
+    private static final int STATUS_OTHER_2XX = STATUS_NO_RESPONSE + 1;
+    private static final int STATUS_OTHER_3XX = STATUS_NO_RESPONSE + 2;
+    private static final int STATUS_OTHER_4XX = STATUS_NO_RESPONSE + 3;
+    private static final int STATUS_OTHER_5XX = STATUS_NO_RESPONSE + 4;
+    private static final int STATUS_SLOTS = STATUS_NO_RESPONSE + 5;
+
+    private static final BackendIO.RemoteDatasetType[] TYPES = BackendIO.RemoteDatasetType.values();
+
+    private final long[][] latencyHistogram = new long[TYPES.length][LATENCY_BUCKETS_MS.length + 1];
+    private final long[][] requestSizeHistogram = new long[TYPES.length][SIZE_BUCKETS_BYTES.length + 1];
+    private final long[][] responseSizeHistogram = new long[TYPES.length][SIZE_BUCKETS_BYTES.length + 1];
+    private final long[][] statusCodes = new long[TYPES.length][STATUS_SLOTS];
+    private final long[] requests = new long[TYPES.length];
+    private final long[] errors = new long[TYPES.length];
+    private final long[] retries = new long[TYPES.length];
+    private final long[] totalLatencyMs = new long[TYPES.length];
+    private final long[] maxLatencyMs = new long[TYPES.length];
+    private final long[] totalRequestBytes = new long[TYPES.length];
+    private final long[] totalResponseBytes = new long[TYPES.length];
+
+    EndpointMetrics() {
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param statusCode   HTTP status code of the response, or -1 if no response was received.
+     * @param retryCount   Number of times the request was sent again after a timeout.
+     */
+    synchronized void record(BackendIO.RemoteDatasetType datasetType, long latencyMs, long requestBytes, long responseBytes, int statusCode, int retryCount) {
+        int type = datasetType.ordinal();
+        requests[type]++;
+        retries[type] += retryCount;
+        totalLatencyMs[type] += latencyMs;
+        totalRequestBytes[type] += requestBytes;
+        totalResponseBytes[type] += responseBytes;
+        if (latencyMs > maxLatencyMs[type]) {
+            maxLatencyMs[type] = latencyMs;
+        }
+        if (statusCode < 200 || statusCode >= 400) {
+            errors[type]++;
+        }
+
+        latencyHistogram[type][bucketOf(LATENCY_BUCKETS_MS, latencyMs)]++;
+        requestSizeHistogram[type][bucketOf(SIZE_BUCKETS_BYTES, requestBytes)]++;
+        responseSizeHistogram[type][bucketOf(SIZE_BUCKETS_BYTES, responseBytes)]++;
+        statusCodes[type][statusSlotOf(statusCode)]++;
+    }
+
+    private static int bucketOf(long[] bounds, long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int statusSlotOf(int statusCode) {
+        for (int i = 0; i < TRACKED_STATUS_CODES.length; i++) {
+            if (TRACKED_STATUS_CODES[i] == statusCode) {
+                return i;
+            }
+        }
+        if (statusCode < 200) {
+            return STATUS_NO_RESPONSE;
+        } else if (statusCode < 300) {
+            return STATUS_OTHER_2XX;
+        } else if (statusCode < 400) {
+            return STATUS_OTHER_3XX;
+        } else if (statusCode < 500) {
+            return STATUS_OTHER_4XX;
+        }
+        return STATUS_OTHER_5XX;
+    }
+
+    private static String statusSlotName(int slot) {
+        if (slot < TRACKED_STATUS_CODES.length) {
+            return String.valueOf(TRACKED_STATUS_CODES[slot]);
+        }
+        switch (slot) {
+            case STATUS_NO_RESPONSE:
+                return "none";
+            case STATUS_OTHER_2XX:
+                return "2xx";
+            case STATUS_OTHER_3XX:
+                return "3xx";
+            case STATUS_OTHER_4XX:
+                return "4xx";
+            default:
+                return "5xx";
+        }
+    }
+
+    /**
+     * @return Upper bound of the bucket containing the given percentile, or -1 for the overflow bucket.
+     */
+    private static long percentileOf(long[] bounds, long[] histogram, long count, double percentile) {
+        long threshold = (long) Math.ceil(count * percentile);
+        long cumulated = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulated += histogram[i];
+            if (cumulated >= threshold) {
+                return bounds[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return A copy of all recorded values of the endpoints, which have received requests, by endpoint type.
+     * Histograms are given as arrays of bucket counts along with their upper bounds.
+     */
+    public synchronized JSONObject getSnapshot() {
+        JSONObject snapshot = new JSONObject();
+        try {
+            snapshot.put("latency_buckets_ms", toJsonArray(LATENCY_BUCKETS_MS));
+            snapshot.put("size_buckets_bytes", toJsonArray(SIZE_BUCKETS_BYTES));
+
+            JSONObject endpoints = new JSONObject();
+            for (BackendIO.RemoteDatasetType datasetType : TYPES) {
+                int type = datasetType.ordinal();
+                if (requests[type] == 0) {
+                    continue;
+                }
+
+                JSONObject statusCodesJson = new JSONObject();
+                for (int slot = 0; slot < STATUS_SLOTS; slot++) {
+                    if (statusCodes[type][slot] > 0) {
+                        statusCodesJson.put(statusSlotName(slot), statusCodes[type][slot]);
+                    }
+                }
+
+                JSONObject endpoint = new JSONObject();
+                endpoint.put("requests", requests[type]);
+                endpoint.put("errors", errors[type]);
+                endpoint.put("retries", retries[type]);
+                endpoint.put("total_latency_ms", totalLatencyMs[type]);
+                endpoint.put("max_latency_ms", maxLatencyMs[type]);
+                endpoint.put("request_bytes", totalRequestBytes[type]);
+                endpoint.put("response_bytes", totalResponseBytes[type]);
+                endpoint.put("latency", toJsonArray(latencyHistogram[type]));
+                endpoint.put("request_size", toJsonArray(requestSizeHistogram[type]));
+                endpoint.put("response_size", toJsonArray(responseSizeHistogram[type]));
+                endpoint.put("status", statusCodesJson);
+                endpoints.put(datasetType.name(), endpoint);
+            }
+            snapshot.put("endpoints", endpoints);
+        } catch (JSONException e) {
+            e.printStackTrace(); // shouldn't happen
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return A human readable summary, one line per endpoint, which has received requests.
+     * Percentiles are given as the upper bound of the histogram bucket they fall in.
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (BackendIO.RemoteDatasetType datasetType : TYPES) {
+            int type = datasetType.ordinal();
+            long count = requests[type];
+            if (count == 0) {
+                continue;
+            }
+
+            if (report.length() > 0) {
+                report.append('\n');
+            }
+            report.append(String.format(Locale.US, "%s: %d requests, %d errors, %d retries, latency avg %d ms, p50 %s, p90 %s, max %d ms, sent %d KB, received %d KB",
+                    datasetType.name(), count, errors[type], retries[type], totalLatencyMs[type] / count,
+                    formatPercentile(percentileOf(LATENCY_BUCKETS_MS, latencyHistogram[type], count, 0.5)),
+                    formatPercentile(percentileOf(LATENCY_BUCKETS_MS, latencyHistogram[type], count, 0.9)),
+                    maxLatencyMs[type], totalRequestBytes[type] / 1024, totalResponseBytes[type] / 1024));
+
+            report.append(", status");
+            for (int slot = 0; slot < STATUS_SLOTS; slot++) {
+                if (statusCodes[type][slot] > 0) {
+                    report.append(' ').append(statusSlotName(slot)).append(':').append(statusCodes[type][slot]);
+                }
+            }
+        }
+        return report.toString();
+    }
+
+    private static String formatPercentile(long bound) {
+        return bound < 0 ? "> " + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1] + " ms" : "<= " + bound + " ms";
+    }
+
+    private static JSONArray toJsonArray(long[] values) {
+        JSONArray array = new JSONArray();
+        for (long value : values) {
+            array.put(value);
+        }
+        return array;
+    }
+}
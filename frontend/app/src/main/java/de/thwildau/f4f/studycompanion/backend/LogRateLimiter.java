@@ -0,0 +1,149 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the number of server log messages per tag and per message fingerprint (token buckets),
+ * so a repeatedly occurring problem does not flood the server log.
+ * Suppressed messages are counted and reported as "suppressed N similar messages" summaries.
+ */
+class LogRateLimiter {
+    // Messages with the same fingerprint: bursts of 5, then one message per minute
+    private static final int FINGERPRINT_BURST = 5;
+    private static final long FINGERPRINT_REFILL_MS = 60 * 1000;
+
+    // Messages with the same tag: bursts of 30, then one message every 5 seconds
+    private static final int TAG_BURST = 30;
+    private static final long TAG_REFILL_MS = 5 * 1000;
+
+    private static final int MAX_TRACKED_KEYS = 256;
+    private static final int MAX_FINGERPRINT_CHARS = 160;
+
+    private static class TokenBucket {
+        final String tag;
+        final String fingerprint;
+        final int capacity;
+        final long refillMs;
+        double tokens;
+        long lastRefill;
+        int suppressed = 0;
+
+        TokenBucket(String tag, String fingerprint, int capacity, long refillMs) {
+            this.tag = tag;
+            this.fingerprint = fingerprint;
+            this.capacity = capacity;
+            this.refillMs = refillMs;
+            tokens = capacity;
+            lastRefill = SystemClock.elapsedRealtime();
+        }
+
+        boolean tryTake() {
+            long now = SystemClock.elapsedRealtime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / (double) refillMs);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    private final Map<String, TokenBucket> fingerprintBuckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<String, TokenBucket> eldest) {
+            if (size() > MAX_TRACKED_KEYS) {
+                evictedSuppressed += eldest.getValue().suppressed;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final Map<String, TokenBucket> tagBuckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Entry<String, TokenBucket> eldest) {
+            return size() > MAX_TRACKED_KEYS;
+        }
+    };
+
+    private int evictedSuppressed = 0;
+
+    /**
+     * @param fingerprint Identifies similar messages. If null, it is derived from msg.
+     * @return true, if the message may be sent to the server.
+     */
+    synchronized boolean tryAcquire(String tag, String fingerprint, String msg) {
+        if (fingerprint == null) {
+            fingerprint = fingerprintOf(msg);
+        }
+
+        String key = tag + "|" + fingerprint;
+        TokenBucket fingerprintBucket = fingerprintBuckets.get(key);
+        if (fingerprintBucket == null) {
+            fingerprintBucket = new TokenBucket(tag, fingerprint, FINGERPRINT_BURST, FINGERPRINT_REFILL_MS);
+            fingerprintBuckets.put(key, fingerprintBucket);
+        }
+
+        TokenBucket tagBucket = tagBuckets.get(tag);
+        if (tagBucket == null) {
+            tagBucket = new TokenBucket(tag, null, TAG_BURST, TAG_REFILL_MS);
+            tagBuckets.put(tag, tagBucket);
+        }
+
+        if (fingerprintBucket.tryTake() && tagBucket.tryTake()) {
+            return true;
+        }
+
+        fingerprintBucket.suppressed++;
+        return false;
+    }
+
+    /**
+     * @return One summary line for each kind of message, which was suppressed since the last call.
+     */
+    synchronized List<String> takeSuppressedSummaries() {
+        List<String> summaries = new ArrayList<>();
+        Iterator<TokenBucket> it = fingerprintBuckets.values().iterator();
+        while (it.hasNext()) {
+            TokenBucket bucket = it.next();
+            if (bucket.suppressed > 0) {
+                summaries.add("[" + bucket.tag + "] suppressed " + bucket.suppressed + " similar messages: " + bucket.fingerprint);
+                bucket.suppressed = 0;
+            }
+        }
+        if (evictedSuppressed > 0) {
+            summaries.add("suppressed " + evictedSuppressed + " further messages");
+            evictedSuppressed = 0;
+        }
+        return summaries;
+    }
+
+    /**
+     * Derives a fingerprint from a message by masking numbers (ids, times, counts)
+     * and cutting it off, so messages only differing in such details are treated as similar.
+     */
+    static String fingerprintOf(String msg) {
+        StringBuilder fingerprint = new StringBuilder(Math.min(msg.length(), MAX_FINGERPRINT_CHARS));
+        boolean inNumber = false;
+        for (int i = 0; i < msg.length() && fingerprint.length() < MAX_FINGERPRINT_CHARS; i++) {
+            char c = msg.charAt(i);
+            if (Character.isDigit(c)) {
+                if (!inNumber) {
+                    fingerprint.append('#');
+                    inNumber = true;
+                }
+            } else {
+                inNumber = false;
+                fingerprint.append(c);
+            }
+        }
+        return fingerprint.toString();
+    }
+}
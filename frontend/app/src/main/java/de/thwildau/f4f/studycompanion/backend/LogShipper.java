@@ -0,0 +1,337 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+import de.thwildau.f4f.studycompanion.datamodel.User;
+
+/**
+ * Buffers server log messages and sends them to the server in batches instead of one request per message.
+ * <p>
+ * Messages are collected in a bounded buffer and sent as a single multi-line log message
+ * when the flush interval has elapsed, enough messages have been collected, an error was logged
+ * or a flush is requested explicitly (e.g. at the end of a sync). If the buffer is full, the oldest
+ * message below warning priority is dropped, and the number of dropped messages is reported with the next batch.
+ * The buffer is spooled to a small file shortly after new messages were added, so messages survive
+ * if the app process is killed before they are sent.
+ * Summaries of messages suppressed by the {@link LogRateLimiter} are added to each batch.
+ * Each message keeps the ID of the user, who was logged in when it was logged, and a batch only contains
+ * messages of the same user, so messages are not attributed to a user, who logged in later.
+ * <p>
+ * All buffer operations run on a dedicated background thread.
+ */
+class LogShipper {
+    private static final String LOG_TAG = "LogShipper";
+
+    private static final int MAX_BUFFERED_LINES = 500;
+    private static final int MAX_LINE_CHARS = 8 * 1024;
+    private static final int MAX_BATCH_CHARS = 32 * 1024;
+    private static final int MAX_SPOOL_CHARS = 64 * 1024;
+
+    // A batch is sent as soon as this many lines are buffered
+    private static final int FLUSH_LINE_COUNT = 50;
+    private static final long FLUSH_INTERVAL_MS = 60 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000;
+
+    // New messages are written to the spool file after this delay, so a burst of messages is written at once
+    private static final long SPOOL_WRITE_DELAY_MS = 1000;
+
+    private static final String SPOOL_FILE_NAME = "server_log_spool.json";
+
+    private static class LogLine {
+        final int priority;
+        final long time;
+        final String userId; // null, if no user was logged in
+        final String text;
+
+        LogLine(int priority, long time, String userId, String text) {
+            this.priority = priority;
+            this.time = time;
+            this.userId = userId;
+            this.text = text;
+        }
+    }
+
+    private final ArrayDeque<LogLine> buffer = new ArrayDeque<>();
+    private final LogRateLimiter rateLimiter;
+    private final Handler handler;
+    private final File spoolFile;
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private final Runnable flushRunnable = this::flushNow;
+    private final Runnable spoolRunnable = () -> {
+        spoolWriteScheduled = false;
+        writeSpool();
+    };
+
+    private int droppedLines = 0;
+    private int failedFlushes = 0;
+    private boolean flushInProgress = false;
+    private boolean flushScheduled = false;
+    private boolean spoolDirty = false;
+    private boolean spoolWriteScheduled = false;
+
+    LogShipper(Context context, LogRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        spoolFile = new File(context.getFilesDir(), SPOOL_FILE_NAME);
+
+        handler.post(() -> {
+            readSpool();
+            if (!buffer.isEmpty()) {
+                scheduleFlush(FLUSH_INTERVAL_MS);
+            }
+        });
+    }
+
+    /**
+     * Adds a message to the buffer. May be called from any thread.
+     *
+     * @param userId ID of the user logged in at the time of the message, or null.
+     */
+    void enqueue(int priority, String userId, String text) {
+        long time = System.currentTimeMillis();
+        if (text.length() > MAX_LINE_CHARS) {
+            text = text.substring(0, MAX_LINE_CHARS) + " [...]";
+        }
+        LogLine line = new LogLine(priority, time, userId, text);
+
+        handler.post(() -> {
+            if (buffer.size() >= MAX_BUFFERED_LINES) {
+                dropLine();
+            }
+            buffer.add(line);
+            spoolDirty = true;
+            scheduleSpoolWrite();
+
+            // Do not send immediately while the server is unreachable, the pending retry will take care of it
+            boolean urgent = priority >= Log.ERROR || buffer.size() >= FLUSH_LINE_COUNT;
+            if (urgent && failedFlushes == 0) {
+                flushNow();
+            } else {
+                scheduleFlush(FLUSH_INTERVAL_MS);
+            }
+        });
+    }
+
+    /**
+     * Sends all buffered messages as soon as possible. May be called from any thread.
+     */
+    void flush() {
+        handler.post(this::flushNow);
+    }
+
+    private void scheduleFlush(long delayMs) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        handler.postDelayed(flushRunnable, delayMs);
+    }
+
+    private void scheduleSpoolWrite() {
+        if (spoolWriteScheduled) {
+            return;
+        }
+        spoolWriteScheduled = true;
+        handler.postDelayed(spoolRunnable, SPOOL_WRITE_DELAY_MS);
+    }
+
+    private void flushNow() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+
+        if (flushInProgress) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        User currentUser = BackendIO.getCurrentUser();
+        String currentUserId = currentUser != null ? currentUser.id : null;
+        for (String summary : rateLimiter.takeSuppressedSummaries()) {
+            if (buffer.size() >= MAX_BUFFERED_LINES) {
+                dropLine();
+            }
+            buffer.add(new LogLine(Log.INFO, now, currentUserId, summary));
+            spoolDirty = true;
+        }
+
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        // Keep the messages on disk until the server has received them
+        writeSpool();
+
+        List<LogLine> batch = new ArrayList<>();
+        StringBuilder msg = new StringBuilder();
+        int reportedDrops = droppedLines;
+        if (reportedDrops > 0) {
+            msg.append("[WARNING] ").append(reportedDrops).append(" log messages were dropped due to a full log buffer.");
+        }
+
+        String batchUserId = buffer.peek().userId;
+        while (!buffer.isEmpty() && (batch.isEmpty() || msg.length() + buffer.peek().text.length() < MAX_BATCH_CHARS)
+                && Objects.equals(buffer.peek().userId, batchUserId)) {
+            LogLine line = buffer.poll();
+            batch.add(line);
+            if (msg.length() > 0) {
+                msg.append('\n');
+            }
+            msg.append('[').append(timeFormat.format(new Date(line.time))).append("] ").append(line.text);
+        }
+
+        flushInProgress = true;
+        BackendIO.sendLogBatch(msg.toString(), batchUserId, new BackendIO.RemoteRequestCompletedCallback() {
+            @Override
+            public void onResponse(JSONObject response) {
+                handler.post(() -> {
+                    flushInProgress = false;
+                    failedFlushes = 0;
+                    droppedLines -= reportedDrops;
+
+                    // Remove the sent lines from disk, so they are not sent again if the process is killed
+                    spoolDirty = true;
+                    writeSpool();
+
+                    if (buffer.size() >= FLUSH_LINE_COUNT) {
+                        flushNow();
+                    } else if (!buffer.isEmpty()) {
+                        scheduleFlush(FLUSH_INTERVAL_MS);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(int errorStatusCode, String errorMessage) {
+                handler.post(() -> {
+                    flushInProgress = false;
+                    failedFlushes++;
+
+                    // put the batch back in front of the buffer, dropping the oldest lines if it does not fit anymore
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        if (buffer.size() >= MAX_BUFFERED_LINES) {
+                            droppedLines += i + 1;
+                            break;
+                        }
+                        buffer.addFirst(batch.get(i));
+                    }
+                    spoolDirty = true;
+                    writeSpool();
+
+                    long retryDelay = Math.min(FLUSH_INTERVAL_MS << Math.min(failedFlushes, 10), MAX_RETRY_DELAY_MS);
+                    scheduleFlush(retryDelay);
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops the oldest message below warning priority or, if there is none, the oldest message.
+     */
+    private void dropLine() {
+        Iterator<LogLine> it = buffer.iterator();
+        while (it.hasNext()) {
+            if (it.next().priority < Log.WARN) {
+                it.remove();
+                droppedLines++;
+                return;
+            }
+        }
+        buffer.poll();
+        droppedLines++;
+    }
+
+    private void writeSpool() {
+        if (!spoolDirty) {
+            return;
+        }
+        spoolDirty = false;
+
+        if (buffer.isEmpty() && droppedLines == 0) {
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+            return;
+        }
+
+        // Only the most recent messages are kept on disk, if the buffer exceeds the spool size
+        ArrayDeque<LogLine> spooledLines = new ArrayDeque<>();
+        int chars = 0;
+        Iterator<LogLine> it = buffer.descendingIterator();
+        while (it.hasNext()) {
+            LogLine line = it.next();
+            chars += line.text.length();
+            if (chars > MAX_SPOOL_CHARS) {
+                break;
+            }
+            spooledLines.addFirst(line);
+        }
+
+        try {
+            JSONArray lines = new JSONArray();
+            for (LogLine line : spooledLines) {
+                lines.put(new JSONArray().put(line.priority).put(line.time).put(line.text)
+                        .put(line.userId != null ? line.userId : JSONObject.NULL));
+            }
+            JSONObject spool = new JSONObject();
+            spool.put("dropped", droppedLines + buffer.size() - spooledLines.size());
+            spool.put("lines", lines);
+
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(spoolFile), StandardCharsets.UTF_8)) {
+                writer.write(spool.toString());
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Could not write log spool: " + e);
+        }
+    }
+
+    private void readSpool() {
+        if (!spoolFile.exists()) {
+            return;
+        }
+
+        try (FileInputStream in = new FileInputStream(spoolFile)) {
+            byte[] content = new byte[(int) spoolFile.length()];
+            int offset = 0;
+            int count;
+            while (offset < content.length && (count = in.read(content, offset, content.length - offset)) != -1) {
+                offset += count;
+            }
+
+            JSONObject spool = new JSONObject(new String(content, 0, offset, StandardCharsets.UTF_8));
+            droppedLines += spool.optInt("dropped");
+            JSONArray lines = spool.getJSONArray("lines");
+            for (int i = 0; i < lines.length() && buffer.size() < MAX_BUFFERED_LINES; i++) {
+                JSONArray line = lines.getJSONArray(i);
+                buffer.add(new LogLine(line.getInt(0), line.getLong(1), line.isNull(3) ? null : line.getString(3), line.getString(2)));
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(LOG_TAG, "Could not read log spool: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            spoolFile.delete();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import de.thwildau.f4f.studycompanion.datamodel.User;
+
+/**
+ * Persistent journal of idempotent requests, which could not be sent due to missing connectivity.
+ * <p>
+ * Requests are stored by the resource they modify, so a newer request for the same resource replaces
+ * a pending older one. Pending requests are replayed one after another in a single burst, as soon as the
+ * network becomes available, or otherwise after an exponentially growing delay.
+ * <p>
+ * All journal operations run on a dedicated background thread.
+ */
+class OfflineRequestJournal {
+    private static final String LOG_TAG = "OfflineRequestJournal";
+
+    private static final String JOURNAL_FILE_NAME = "offline_request_journal.json";
+    private static final int MAX_ENTRIES = 200;
+
+    private static final long MIN_RETRY_DELAY_MS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60 * 60 * 1000;
+
+    private static class Entry {
+        final BackendIO.RemoteDatasetType datasetType;
+        final String urlParameter;
+        final JSONObject dataset;
+        final String userId;
+
+        Entry(BackendIO.RemoteDatasetType datasetType, String urlParameter, JSONObject dataset, String userId) {
+            this.datasetType = datasetType;
+            this.urlParameter = urlParameter;
+            this.dataset = dataset;
+            this.userId = userId;
+        }
+
+        String getKey() {
+            return datasetType.name() + "/" + urlParameter + "/" + dataset.optString("id");
+        }
+    }
+
+    // pending requests in the order they were journaled, by key
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final Handler handler;
+    private final File journalFile;
+    private final Runnable replayRunnable = this::replay;
+
+    private boolean replayInProgress = false;
+    private boolean replayScheduled = false;
+    private int failedReplays = 0;
+
+    OfflineRequestJournal(Context context) {
+        HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        journalFile = new File(context.getFilesDir(), JOURNAL_FILE_NAME);
+
+        handler.post(() -> {
+            readJournal();
+            scheduleReplay(MIN_RETRY_DELAY_MS);
+        });
+
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager != null) {
+            connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(@NonNull Network network) {
+                    handler.post(() -> {
+                        // connectivity is back, so replay immediately regardless of the backoff
+                        failedReplays = 0;
+                        replay();
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Journals a request for replay. A pending request for the same resource is replaced.
+     */
+    void add(BackendIO.RemoteDatasetType datasetType, String urlParameter, JSONObject dataset, User user) {
+        Entry entry = new Entry(datasetType, urlParameter, dataset, user.id);
+        handler.post(() -> {
+            String key = entry.getKey();
+            synchronized (entries) {
+                entries.remove(key); // re-insert at the end
+                entries.put(key, entry);
+
+                if (entries.size() > MAX_ENTRIES) {
+                    Iterator<String> it = entries.keySet().iterator();
+                    Log.w(LOG_TAG, "Journal full, dropping request " + it.next());
+                    it.remove();
+                }
+            }
+
+            writeJournal();
+            scheduleReplay(getRetryDelay());
+        });
+    }
+
+    /**
+     * @return true, if a request for the same resource as the given one is still pending.
+     * Must not be called on the journal thread.
+     */
+    boolean hasPendingRequest(BackendIO.RemoteDatasetType datasetType, String urlParameter, JSONObject dataset) {
+        String key = new Entry(datasetType, urlParameter, dataset, null).getKey();
+        synchronized (entries) {
+            return entries.containsKey(key);
+        }
+    }
+
+    private void scheduleReplay(long delayMs) {
+        if (replayScheduled || replayInProgress) {
+            return;
+        }
+        replayScheduled = true;
+        handler.postDelayed(replayRunnable, delayMs);
+    }
+
+    private long getRetryDelay() {
+        return Math.min(MIN_RETRY_DELAY_MS << Math.min(failedReplays, 10), MAX_RETRY_DELAY_MS);
+    }
+
+    private void replay() {
+        handler.removeCallbacks(replayRunnable);
+        replayScheduled = false;
+
+        Entry entry;
+        synchronized (entries) {
+            if (replayInProgress || entries.isEmpty()) {
+                return;
+            }
+            entry = entries.values().iterator().next();
+        }
+
+        User currentUser = BackendIO.getCurrentUser();
+        if (currentUser == null) {
+            // wait for the user to log in again
+            failedReplays++;
+            scheduleReplay(getRetryDelay());
+            return;
+        }
+
+        if (!currentUser.id.equals(entry.userId)) {
+            // another user has logged in in the meantime
+            Log.w(LOG_TAG, "Dropping journaled request of another user: " + entry.getKey());
+            removeEntry(entry);
+            replay();
+            return;
+        }
+
+        replayInProgress = true;
+        BackendIO.sendRemoteDatasetAsync(entry.dataset, entry.datasetType, entry.urlParameter, new BackendIO.RemoteRequestCompletedCallback() {
+            @Override
+            public void onResponse(JSONObject response) {
+                handler.post(() -> {
+                    replayInProgress = false;
+                    failedReplays = 0;
+                    removeEntry(entry);
+                    // continue with the next request while the connection is up
+                    replay();
+                });
+            }
+
+            @Override
+            public void onError(int errorStatusCode, String errorMessage) {
+                handler.post(() -> {
+                    replayInProgress = false;
+                    if (BackendIO.isRetryableStatusCode(errorStatusCode)) {
+                        failedReplays++;
+                        scheduleReplay(getRetryDelay());
+                    } else {
+                        // The server rejected the request, sending it again will not help
+                        BackendIO.serverLog(Log.WARN, LOG_TAG, "Journaled request " + entry.getKey() + " rejected by server (" + errorStatusCode + ": " + errorMessage + ").");
+                        removeEntry(entry);
+                        replay();
+                    }
+                });
+            }
+        });
+    }
+
+    private void removeEntry(Entry entry) {
+        String key = entry.getKey();
+        synchronized (entries) {
+            if (entries.get(key) == entry) {
+                // only remove, if it was not replaced by a newer request in the meantime
+                entries.remove(key);
+            }
+        }
+        writeJournal();
+    }
+
+    private void writeJournal() {
+        JSONArray journal = new JSONArray();
+        synchronized (entries) {
+            if (entries.isEmpty()) {
+                //noinspection ResultOfMethodCallIgnored
+                journalFile.delete();
+                return;
+            }
+
+            try {
+                for (Entry entry : entries.values()) {
+                    JSONObject entryJson = new JSONObject();
+                    entryJson.put("type", entry.datasetType.name());
+                    entryJson.put("param", entry.urlParameter);
+                    entryJson.put("user", entry.userId);
+                    entryJson.put("data", entry.dataset);
+                    journal.put(entryJson);
+                }
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Could not serialize journal: " + e);
+                return;
+            }
+        }
+
+        // write to a temporary file first, so a crash while writing does not destroy the journal
+        File tmpFile = new File(journalFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8)) {
+            writer.write(journal.toString());
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write journal: " + e);
+            return;
+        }
+        if (!tmpFile.renameTo(journalFile)) {
+            Log.w(LOG_TAG, "Could not replace journal file.");
+        }
+    }
+
+    private void readJournal() {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        try (FileInputStream in = new FileInputStream(journalFile)) {
+            byte[] content = new byte[(int) journalFile.length()];
+            int offset = 0;
+            int count;
+            while (offset < content.length && (count = in.read(content, offset, content.length - offset)) != -1) {
+                offset += count;
+            }
+
+            JSONArray journal = new JSONArray(new String(content, 0, offset, StandardCharsets.UTF_8));
+            synchronized (entries) {
+                for (int i = 0; i < journal.length(); i++) {
+                    JSONObject entryJson = journal.getJSONObject(i);
+                    Entry entry = new Entry(
+                            BackendIO.RemoteDatasetType.valueOf(entryJson.getString("type")),
+                            entryJson.isNull("param") ? null : entryJson.getString("param"),
+                            entryJson.getJSONObject("data"),
+                            entryJson.getString("user"));
+                    entries.put(entry.getKey(), entry);
+                }
+            }
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Could not read journal: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            journalFile.delete();
+        }
+    }
+}
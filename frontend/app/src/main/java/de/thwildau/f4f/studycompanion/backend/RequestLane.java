@@ -0,0 +1,187 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.volley.Cache;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
+import com.android.volley.toolbox.NoCache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Classes of backend requests. Each lane has its own request queue with a limited number of
+ * concurrent requests, so large sync uploads or bursts of log messages do not delay the requests
+ * the user is waiting for. Requests of a lane, which are not sent through Volley (streaming requests),
+ * are limited to the same number of concurrent requests and run with the lane's thread priority.
+ * The time requests spend waiting in the queue of a lane is measured.
+ */
+public enum RequestLane {
+    /**
+     * Requests triggered by the user or needed for the UI (login, user management, structures).
+     */
+    INTERACTIVE(Process.THREAD_PRIORITY_DEFAULT, 4, true),
+
+    /**
+     * Data sync requests, which might transfer large amounts of data.
+     */
+    BULK_SYNC(Process.THREAD_PRIORITY_BACKGROUND, 2, false),
+
+    /**
+     * Fire-and-forget requests, such as server log messages.
+     */
+    TELEMETRY(Process.THREAD_PRIORITY_LOWEST, 1, false);
+
+    private final int threadPriority;
+    private final int maxConcurrentRequests;
+    private final boolean cached;
+
+    // Limits requests of this lane, which are not sent through the Volley queue (streaming requests)
+    private final Semaphore streamingSlots;
+
+    private RequestQueue queue = null;
+
+    private final Map<Integer, Long> queuedTimes = new HashMap<>();
+    private long dispatchedRequests = 0;
+    private long totalQueueLatencyMs = 0;
+    private long maxQueueLatencyMs = 0;
+    private long streamedBytesSent = 0;
+    private long streamedBytesReceived = 0;
+
+    RequestLane(int threadPriority, int maxConcurrentRequests, boolean cached) {
+        this.threadPriority = threadPriority;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.cached = cached;
+        streamingSlots = new Semaphore(maxConcurrentRequests, true);
+    }
+
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    synchronized void initialize(Context context) {
+        if (queue != null) {
+            return;
+        }
+
+        Cache cache = cached ? new DiskBasedCache(new File(context.getCacheDir(), "volley")) : new NoCache();
+        queue = new RequestQueue(cache, new BasicNetwork(new HurlStack()), maxConcurrentRequests);
+        queue.addRequestEventListener((request, event) -> {
+            switch (event) {
+                case RequestQueue.RequestEvent.REQUEST_QUEUED:
+                    onQueued(request.getSequence());
+                    break;
+                case RequestQueue.RequestEvent.REQUEST_NETWORK_DISPATCH_STARTED:
+                    onDispatched(request.getSequence());
+                    break;
+                case RequestQueue.RequestEvent.REQUEST_FINISHED:
+                    onFinished(request.getSequence());
+                    break;
+            }
+        });
+        queue.start();
+    }
+
+    synchronized boolean isInitialized() {
+        return queue != null;
+    }
+
+    void add(Request<?> request) {
+        RequestQueue queue;
+        synchronized (this) {
+            queue = this.queue;
+        }
+        queue.add(request);
+    }
+
+    /**
+     * Blocks until a request, which is not sent through the Volley queue, may be executed in this lane.
+     * Must be followed by a call of {@link #releaseStreamingSlot()}.
+     */
+    void acquireStreamingSlot() throws InterruptedException {
+        long queuedTime = SystemClock.elapsedRealtime();
+        streamingSlots.acquire();
+        recordQueueLatency(SystemClock.elapsedRealtime() - queuedTime);
+    }
+
+    void releaseStreamingSlot() {
+        streamingSlots.release();
+    }
+
+    private synchronized void onQueued(int sequence) {
+        queuedTimes.put(sequence, SystemClock.elapsedRealtime());
+    }
+
+    private synchronized void onDispatched(int sequence) {
+        Long queuedTime = queuedTimes.remove(sequence);
+        if (queuedTime != null) {
+            recordQueueLatency(SystemClock.elapsedRealtime() - queuedTime);
+        }
+    }
+
+    private synchronized void onFinished(int sequence) {
+        // requests answered from cache or cancelled before dispatching
+        queuedTimes.remove(sequence);
+    }
+
+    private synchronized void recordQueueLatency(long latencyMs) {
+        dispatchedRequests++;
+        totalQueueLatencyMs += latencyMs;
+        maxQueueLatencyMs = Math.max(maxQueueLatencyMs, latencyMs);
+    }
+
+    synchronized void recordStreamedBytes(long sent, long received) {
+        streamedBytesSent += sent;
+        streamedBytesReceived += received;
+    }
+
+    /**
+     * @return Total number of (uncompressed) request body bytes sent by streaming requests of this lane.
+     */
+    public synchronized long getStreamedBytesSent() {
+        return streamedBytesSent;
+    }
+
+    /**
+     * @return Total number of response body bytes received by streaming requests of this lane.
+     */
+    public synchronized long getStreamedBytesReceived() {
+        return streamedBytesReceived;
+    }
+
+    /**
+     * @return Number of dispatched requests as well as average and maximum time they waited in the queue of this lane.
+     */
+    public synchronized String getQueueLatencyReport() {
+        long average = dispatchedRequests > 0 ? totalQueueLatencyMs / dispatchedRequests : 0;
+        return String.format(Locale.US, "%s: %d requests, queue latency avg %d ms, max %d ms",
+                name(), dispatchedRequests, average, maxQueueLatencyMs);
+    }
+
+    /**
+     * @return The lane requests to the given endpoint are sent through.
+     */
+    static RequestLane of(BackendIO.RemoteDatasetType datasetType) {
+        switch (datasetType) {
+            case SYNC:
+                return BULK_SYNC;
+            case LOG:
+                return TELEMETRY;
+            default:
+                return INTERACTIVE;
+        }
+    }
+}
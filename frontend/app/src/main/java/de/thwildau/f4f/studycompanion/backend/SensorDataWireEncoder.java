@@ -0,0 +1,290 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Compact binary encoding of SensorData payloads for the sync upload ("f4f-binary-v1").
+ * It is only used, if the server lists this encoding in the "sensor_data_encodings" field of GET /info.
+ * <p>
+ * The format is a MessagePack-like tagged encoding of the JSON structure. Numeric arrays, such as
+ * timestamps, BPM or temperature values, are stored as columns of zig-zag varint deltas:
+ * <pre>
+ *   0x00 null | 0x01 false | 0x02 true
+ *   0x03 integer:        zig-zag varint
+ *   0x04 floating point: IEEE 754 double, big endian
+ *   0x05 string:         varint byte length, UTF-8 bytes
+ *   0x06 array:          varint length, elements
+ *   0x07 object:         varint number of fields, (varint key length, UTF-8 key, value) per field
+ *   0x08 integer column: varint length, first value and following deltas as zig-zag varints
+ *   0x09 decimal column: varint length, scale byte s, then like 0x08 for the values multiplied by 10^s
+ * </pre>
+ * A payload starts with the format version byte (1), followed by the encoded object.
+ */
+public class SensorDataWireEncoder {
+    public static final String ENCODING_NAME = "f4f-binary-v1";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int TAG_NULL = 0x00;
+    private static final int TAG_FALSE = 0x01;
+    private static final int TAG_TRUE = 0x02;
+    private static final int TAG_INTEGER = 0x03;
+    private static final int TAG_DOUBLE = 0x04;
+    private static final int TAG_STRING = 0x05;
+    private static final int TAG_ARRAY = 0x06;
+    private static final int TAG_OBJECT = 0x07;
+    private static final int TAG_INTEGER_COLUMN = 0x08;
+    private static final int TAG_DECIMAL_COLUMN = 0x09;
+
+    private static final int MAX_DECIMAL_SCALE = 6;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+    private SensorDataWireEncoder() { }
+
+    public static byte[] encode(JSONObject sensorData) throws JSONException {
+        SensorDataWireEncoder encoder = new SensorDataWireEncoder();
+        encoder.out.write(FORMAT_VERSION);
+        encoder.writeObject(sensorData);
+        return encoder.out.toByteArray();
+    }
+
+    /**
+     * Starts the encoding of an object, whose fields are not held as JSON, but as primitive columns.
+     * The fields are added by the put methods, the payload is obtained by {@link #toByteArray()}.
+     *
+     * @param fieldCount Number of fields, which will be put.
+     */
+    public static SensorDataWireEncoder beginObject(int fieldCount) {
+        SensorDataWireEncoder encoder = new SensorDataWireEncoder();
+        encoder.out.write(FORMAT_VERSION);
+        encoder.out.write(TAG_OBJECT);
+        encoder.writeVarint(fieldCount);
+        return encoder;
+    }
+
+    public SensorDataWireEncoder putString(String key, String value) {
+        writeString(key);
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else {
+            out.write(TAG_STRING);
+            writeString(value);
+        }
+        return this;
+    }
+
+    public SensorDataWireEncoder putBoolean(String key, boolean value) {
+        writeString(key);
+        out.write(value ? TAG_TRUE : TAG_FALSE);
+        return this;
+    }
+
+    public SensorDataWireEncoder putIntegerColumn(String key, long[] values) {
+        writeString(key);
+        writeIntegerColumn(values);
+        return this;
+    }
+
+    public SensorDataWireEncoder putIntegerColumn(String key, int[] values) {
+        long[] longValues = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            longValues[i] = values[i];
+        }
+        return putIntegerColumn(key, longValues);
+    }
+
+    public SensorDataWireEncoder putDecimalColumn(String key, float[] values) {
+        writeString(key);
+        writeDecimalColumn(values);
+        return this;
+    }
+
+    /**
+     * Puts an array of decimal columns, e.g. a list of values per sample.
+     */
+    public SensorDataWireEncoder putDecimalColumns(String key, float[][] columns) {
+        writeString(key);
+        out.write(TAG_ARRAY);
+        writeVarint(columns.length);
+        for (float[] column : columns) {
+            writeDecimalColumn(column);
+        }
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private void writeValue(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (isIntegral(value)) {
+            out.write(TAG_INTEGER);
+            writeSignedVarint(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value);
+        } else {
+            out.write(TAG_STRING);
+            writeString(value.toString());
+        }
+    }
+
+    private void writeObject(JSONObject object) throws JSONException {
+        out.write(TAG_OBJECT);
+        writeVarint(object.length());
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            writeString(key);
+            writeValue(object.get(key));
+        }
+    }
+
+    private void writeArray(JSONArray array) throws JSONException {
+        int length = array.length();
+        boolean numbersOnly = length > 0;
+        boolean integralOnly = true;
+        int scale = 0;
+
+        for (int i = 0; i < length && numbersOnly; i++) {
+            Object element = array.get(i);
+            if (!(element instanceof Number)) {
+                numbersOnly = false;
+            } else if (!isIntegral(element)) {
+                integralOnly = false;
+                scale = Math.max(scale, decimalScale(((Number) element).doubleValue()));
+            }
+        }
+
+        if (numbersOnly && integralOnly) {
+            out.write(TAG_INTEGER_COLUMN);
+            writeVarint(length);
+            long previous = 0;
+            for (int i = 0; i < length; i++) {
+                long value = ((Number) array.get(i)).longValue();
+                writeSignedVarint(value - previous);
+                previous = value;
+            }
+        } else if (numbersOnly && scale <= MAX_DECIMAL_SCALE) {
+            out.write(TAG_DECIMAL_COLUMN);
+            writeVarint(length);
+            out.write(scale);
+            double factor = Math.pow(10, scale);
+            long previous = 0;
+            for (int i = 0; i < length; i++) {
+                long value = Math.round(((Number) array.get(i)).doubleValue() * factor);
+                writeSignedVarint(value - previous);
+                previous = value;
+            }
+        } else {
+            out.write(TAG_ARRAY);
+            writeVarint(length);
+            for (int i = 0; i < length; i++) {
+                writeValue(array.get(i));
+            }
+        }
+    }
+
+    private void writeIntegerColumn(long[] values) {
+        if (values.length == 0) {
+            // same as an empty JSON array
+            out.write(TAG_ARRAY);
+            writeVarint(0);
+            return;
+        }
+
+        out.write(TAG_INTEGER_COLUMN);
+        writeVarint(values.length);
+        long previous = 0;
+        for (long value : values) {
+            writeSignedVarint(value - previous);
+            previous = value;
+        }
+    }
+
+    private void writeDecimalColumn(float[] values) {
+        // Floats are encoded by their shortest decimal representation, as they would be in JSON
+        double[] decimals = new double[values.length];
+        int scale = 0;
+        for (int i = 0; i < values.length; i++) {
+            decimals[i] = Double.parseDouble(Float.toString(values[i]));
+            scale = Math.max(scale, decimalScale(decimals[i]));
+        }
+
+        if (values.length == 0 || scale > MAX_DECIMAL_SCALE) {
+            out.write(TAG_ARRAY);
+            writeVarint(values.length);
+            for (double value : decimals) {
+                writeDouble(value);
+            }
+            return;
+        }
+
+        out.write(TAG_DECIMAL_COLUMN);
+        writeVarint(values.length);
+        out.write(scale);
+        double factor = Math.pow(10, scale);
+        long previous = 0;
+        for (double decimal : decimals) {
+            long value = Math.round(decimal * factor);
+            writeSignedVarint(value - previous);
+            previous = value;
+        }
+    }
+
+    private void writeDouble(double value) {
+        out.write(TAG_DOUBLE);
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift) & 0xFF);
+        }
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63)); // zig-zag
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * @return The number of decimal places of the shortest decimal representation of value,
+     * or Integer.MAX_VALUE if it cannot be stored in a decimal column.
+     */
+    private static int decimalScale(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) > 1e12) {
+            return Integer.MAX_VALUE;
+        }
+        return Math.max(0, new BigDecimal(Double.toString(value)).stripTrailingZeros().scale());
+    }
+}
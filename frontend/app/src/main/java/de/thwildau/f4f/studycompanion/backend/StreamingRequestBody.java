@@ -0,0 +1,143 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the JSON body of a streaming request to a connection, optionally gzip compressed.
+ * All request headers are set before the connection's output stream is opened, since the connection
+ * is established at that point and does not accept further headers.
+ * <p>
+ * The body is usually serialized while it is written (e.g. from Realm), so the time spent writing to
+ * the connection is measured separately from the serialization and compression.
+ */
+class StreamingRequestBody {
+
+    private long bytes = 0;
+    private long networkWriteNanos = 0;
+
+    private StreamingRequestBody() { }
+
+    /**
+     * Writes the body produced by bodyWriter to the (not yet connected) connection.
+     *
+     * @param compress Whether the body is sent gzip compressed.
+     * @return The written body, providing its uncompressed size and the time needed for sending it.
+     */
+    static StreamingRequestBody write(HttpURLConnection connection, boolean compress, BackendIO.StreamingRequestBodyWriter bodyWriter) throws IOException {
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(0);
+        connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        if (compress) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+
+        StreamingRequestBody body = new StreamingRequestBody();
+        TimedOutputStream networkStream = new TimedOutputStream(connection.getOutputStream());
+        OutputStream bodyStream = networkStream;
+        if (compress) {
+            bodyStream = new GZIPOutputStream(bodyStream);
+        }
+
+        // Uncompressed bytes are counted, since upload segments are sized by their uncompressed size
+        try (CountingOutputStream out = new CountingOutputStream(bodyStream);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            bodyWriter.writeBody(writer);
+            writer.flush();
+            body.bytes = out.getCount();
+        }
+        body.networkWriteNanos = networkStream.getNanos();
+        return body;
+    }
+
+    /**
+     * @return Uncompressed size of the body in bytes.
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Time spent writing the body to the connection in milliseconds, excluding its serialization and compression.
+     */
+    long getNetworkWriteMs() {
+        return networkWriteNanos / 1000000;
+    }
+
+    /**
+     * Measures the time spent in writing to the connection's output stream.
+     */
+    private static class TimedOutputStream extends FilterOutputStream {
+        private long nanos = 0;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long start = System.nanoTime();
+            out.flush();
+            nanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - start;
+        }
+
+        long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Counts the bytes written to a request body.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
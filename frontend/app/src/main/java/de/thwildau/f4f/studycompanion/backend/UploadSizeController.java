@@ -0,0 +1,111 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import de.thwildau.f4f.studycompanion.R;
+import de.thwildau.f4f.studycompanion.StudyCompanion;
+
+/**
+ * Determines the size of upload segments and the timeout of upload requests
+ * from the throughput and latency measured on previous uploads and from the available heap.
+ * The estimates are kept in the global preferences, so they survive between sync processes.
+ */
+public class UploadSizeController {
+    private static final String LOG_TAG = "UploadSizeController";
+
+    // Each segment should take about this long to transfer on the measured link
+    private static final long TARGET_TRANSFER_TIME_MS = 10000;
+
+    private static final long MIN_SEGMENT_BYTES = 16 * 1024;
+    private static final long MAX_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final int MIN_TIMEOUT_MS = 10000;
+    private static final int MAX_TIMEOUT_MS = 120000;
+    private static final float TIMEOUT_SAFETY_FACTOR = 3f;
+
+    // Not more than this fraction of the free heap is used for upload segments held in memory
+    private static final int HEAP_BUDGET_DIVISOR = 8;
+
+    // Weight of a new measurement in the moving averages
+    private static final float SMOOTHING_FACTOR = 0.3f;
+
+    // Conservative defaults for a slow mobile connection, used until the first measurement
+    private static final float DEFAULT_THROUGHPUT_BYTES_PER_S = 50 * 1024;
+    private static final float DEFAULT_LATENCY_MS = 500;
+    private static final float MIN_THROUGHPUT_BYTES_PER_S = 2 * 1024;
+
+    private float throughputBytesPerS;
+    private float latencyMs;
+
+    UploadSizeController() {
+        SharedPreferences sp = StudyCompanion.getGlobalPreferences();
+        throughputBytesPerS = sp.getFloat(StudyCompanion.getAppContext().getString(R.string.uploadThroughputEstimate), DEFAULT_THROUGHPUT_BYTES_PER_S);
+        latencyMs = sp.getFloat(StudyCompanion.getAppContext().getString(R.string.uploadLatencyEstimate), DEFAULT_LATENCY_MS);
+    }
+
+    /**
+     * @param segmentsHeldInMemory Number of serialized segments, which might be held in memory at the same time.
+     * @return The number of bytes a single upload segment should not exceed.
+     */
+    public synchronized long getSegmentByteBudget(int segmentsHeldInMemory) {
+        long bytes = (long) (throughputBytesPerS * TARGET_TRANSFER_TIME_MS / 1000f);
+
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // Serialized segments are kept as Java Strings, which use two bytes per character
+        long heapBudget = freeHeap / HEAP_BUDGET_DIVISOR / 2 / Math.max(1, segmentsHeldInMemory);
+
+        return Math.max(MIN_SEGMENT_BYTES, Math.min(Math.min(bytes, heapBudget), MAX_SEGMENT_BYTES));
+    }
+
+    /**
+     * @return A request timeout, which matches the expected transfer time of the given number of bytes.
+     */
+    public synchronized int getTimeoutMs(long bytes) {
+        float expectedMs = latencyMs + bytes * 1000f / throughputBytesPerS;
+        int timeout = Math.round(expectedMs * TIMEOUT_SAFETY_FACTOR);
+        return Math.max(MIN_TIMEOUT_MS, Math.min(timeout, MAX_TIMEOUT_MS));
+    }
+
+    /**
+     * Updates the estimates after a successful upload.
+     *
+     * @param bytes Size of the request body.
+     * @param sendDurationMs Time needed for writing the request body to the network, excluding its serialization.
+     * @param responseDurationMs Time between the request body was written and the response was received.
+     */
+    public synchronized void recordTransfer(long bytes, long sendDurationMs, long responseDurationMs) {
+        if (bytes < MIN_SEGMENT_BYTES) {
+            // Small requests are dominated by latency and say nothing about the throughput
+            latencyMs = smooth(latencyMs, responseDurationMs);
+        } else {
+            float throughput = bytes * 1000f / Math.max(1, sendDurationMs + responseDurationMs - latencyMs);
+            throughputBytesPerS = Math.max(MIN_THROUGHPUT_BYTES_PER_S, smooth(throughputBytesPerS, throughput));
+        }
+
+        Log.d(LOG_TAG, "Upload of " + bytes + " bytes took " + (sendDurationMs + responseDurationMs) + " ms. Estimated throughput: "
+                + Math.round(throughputBytesPerS) + " B/s, latency: " + Math.round(latencyMs) + " ms.");
+        storeEstimates();
+    }
+
+    /**
+     * Halves the throughput estimate after an upload timed out or was interrupted,
+     * so the next segments get smaller and their timeouts longer.
+     */
+    public synchronized void recordFailure() {
+        throughputBytesPerS = Math.max(MIN_THROUGHPUT_BYTES_PER_S, throughputBytesPerS / 2);
+        storeEstimates();
+    }
+
+    private static float smooth(float average, float sample) {
+        return average + SMOOTHING_FACTOR * (sample - average);
+    }
+
+    private void storeEstimates() {
+        StudyCompanion.getGlobalPreferences().edit()
+                .putFloat(StudyCompanion.getAppContext().getString(R.string.uploadThroughputEstimate), throughputBytesPerS)
+                .putFloat(StudyCompanion.getAppContext().getString(R.string.uploadLatencyEstimate), latencyMs)
+                .apply();
+    }
+}
@@ -1,17 +1,33 @@
 package de.thwildau.f4f.studycompanion.datamodel;
 
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.JsonReader;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.text.ParseException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import de.thwildau.f4f.studycompanion.R;
 import de.thwildau.f4f.studycompanion.StudyCompanion;
@@ -19,6 +35,7 @@ import de.thwildau.f4f.studycompanion.Utils;
 import de.thwildau.f4f.studycompanion.backend.BackendIO;
 import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
 import de.thwildau.f4f.studycompanion.datamodel.enums.Role;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SensorChunk;
 import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SyncableData;
 import de.thwildau.f4f.studycompanion.notifications.NotificationOrganizer;
 import io.realm.Realm;
@@ -31,6 +48,24 @@ public class DataManager {
 
     private static final String LOG_TAG = "DataManager";
 
+    // Maximum number of datasets sent to the server within a single upload request.
+    // Each segment is acknowledged by the server on its own, so an interrupted upload only needs
+    // to repeat the last unacknowledged segment. Within this limit, segments are sized by bytes
+    // through BackendIO's UploadSizeController.
+    private static final int MAX_UPLOAD_SEGMENT_DATASETS = 1000;
+    private static final int MAX_SEGMENT_UPLOAD_RETRIES = 3;
+    private static final long SEGMENT_UPLOAD_RETRY_DELAY_MS = 2000;
+
+    // Number of upload segments, which can be prepared ahead or wait for storing their remote IDs in pipelined mode.
+    private static final int UPLOAD_PIPELINE_DEPTH = 2;
+
+    // Number of downloaded datasets stored within a single Realm transaction.
+    private static final int DOWNLOAD_BATCH_SIZE = 100;
+
+    // Uploaded datasets are tagged with this prefix and the sync process ID in their lastSyncId field,
+    // until the server has confirmed the sync process. Such datasets are not uploaded again within the same sync process.
+    private static final String PENDING_SYNC_ID_PREFIX = "pending:";
+
     private static Utils.ObservableValue<Date> lastSyncDate = null;
     private static Utils.ObservableValue<Boolean> modifiedSinceLastSync = null;
 
@@ -54,16 +89,17 @@ public class DataManager {
         void onSynchronizationError();
     }
 
-    private enum SyncProcessState {
+    enum SyncProcessState {
         STARTED,
         SYNC_PROC_ID_RECEIVED,
         DOWNLOADED_USER_DATA,
         STORED_USER_DATA,
         DOWNLOADED_LAB_DATA,
         STORED_LAB_DATA,
-        UPLOADED_USER_DATA,
+        UPLOADED_SEGMENT,
+        STORED_SEGMENT_REMOTE_KEYS,
+        SEGMENT_UPLOAD_FAILED,
         STORED_USER_DATA_REMOTE_KEYS,
-        UPLOADED_SENSOR_DATA,
         STORED_SENSOR_DATA_REMOTE_KEYS,
         SYNC_CONFIRMED,
         SYNC_PROCESS_FINISHED,
@@ -71,33 +107,195 @@ public class DataManager {
         CANCELLED;
     }
 
+    // States, which are persisted as checkpoint when entered. An interrupted sync process is resumed from the last one.
+    private static final EnumSet<SyncProcessState> RESUMABLE_STATES = EnumSet.of(
+            SyncProcessState.SYNC_PROC_ID_RECEIVED,
+            SyncProcessState.STORED_USER_DATA,
+            SyncProcessState.STORED_LAB_DATA,
+            SyncProcessState.STORED_USER_DATA_REMOTE_KEYS,
+            SyncProcessState.STORED_SENSOR_DATA_REMOTE_KEYS,
+            SyncProcessState.SYNC_CONFIRMED);
+
     // Synchronization Process State Machine state fields:
     private static SyncProcessState syncProcessState;
     private static int numDatasetsToUpload;
     private static int numUploadedDatasets;
     private static int numDownloadedDatasets;
     private static boolean downloadAllData;
-    private static List<SyncableData> syncedDatasets;
     private static String syncProcId;
+    private static boolean resumedSync;
     private static OnSynchronizationProcessStateChangeListener synchronizationStatusChangedListener = null;
     private static StateMachineThread stateMachineThread;
     private static Realm syncRealm;
+    private static SyncMetrics syncMetrics;
     // End: Synchronization State Machine state fields
 
     private static Object syncLock = new Object();
 
+    private static boolean pipelinedUpload = true;
+    private static boolean syncMetricsLogging = true;
+
+    /**
+     * A segment of local datasets within a segmented upload.
+     * It is filled while the request body is serialized and evaluated once the server has acknowledged it.
+     */
+    private static class UploadSegment {
+        final DataType dataType;
+        final long afterLocalId;
+        final long maxBytes;
+        long bytes = 0;
+        long lastLocalId;
+        final List<Long> uploadedLocalIds = new ArrayList<>(); // sent datasets, in order of the remote identifiers
+        final List<Long> gatheredLocalIds = new ArrayList<>(); // all datasets of this segment, including locally deleted ones
+        String body = null; // serialized request body, only set for segments prepared in pipelined mode
+        List<String> remoteIds = null;
+
+        UploadSegment(DataType dataType, long afterLocalId, long maxBytes) {
+            this.dataType = dataType;
+            this.afterLocalId = afterLocalId;
+            this.maxBytes = maxBytes;
+            this.lastLocalId = afterLocalId;
+        }
+    }
+
+    /**
+     * Pipelined segmented upload of a single data type.
+     * While one segment is transferred by the sync state machine, the following segments are
+     * gathered and serialized on a preparation thread, and the remote IDs of the previously
+     * acknowledged segment are stored on a storage thread. The stages are connected by bounded
+     * queues, so at most UPLOAD_PIPELINE_DEPTH segments are held in memory per stage.
+     */
+    private static class UploadPipeline {
+        private static final UploadSegment END_OF_SEGMENTS = new UploadSegment(null, 0, 0);
+
+        private final BlockingQueue<UploadSegment> preparedSegments = new ArrayBlockingQueue<>(UPLOAD_PIPELINE_DEPTH);
+        private final BlockingQueue<UploadSegment> acknowledgedSegments = new ArrayBlockingQueue<>(UPLOAD_PIPELINE_DEPTH);
+        private final Thread preparationThread;
+        private final Thread storageThread;
+        private volatile boolean shutdown = false;
+        private volatile Exception error = null;
+
+        UploadPipeline(DataType dataType, long afterLocalId) {
+            preparationThread = new Thread(() -> prepareSegments(dataType, afterLocalId));
+            storageThread = new Thread(this::storeAcknowledgedSegments);
+            preparationThread.start();
+            storageThread.start();
+        }
+
+        private void prepareSegments(DataType dataType, long afterLocalId) {
+            long cursor = afterLocalId;
+            try {
+                while (!shutdown) {
+                    // Prepared segments are held in the queue, plus one being prepared and one being sent
+                    long maxBytes = BackendIO.getUploadSizeController().getSegmentByteBudget(UPLOAD_PIPELINE_DEPTH + 2);
+                    UploadSegment segment = new UploadSegment(dataType, cursor, maxBytes);
+                    StringWriter body = new StringWriter();
+                    writeUploadSegment(segment, body);
+                    if (segment.gatheredLocalIds.isEmpty()) {
+                        break;
+                    }
+
+                    segment.body = body.toString();
+                    preparedSegments.put(segment);
+                    cursor = segment.lastLocalId;
+                }
+                preparedSegments.put(END_OF_SEGMENTS);
+            } catch (InterruptedException e) {
+                // pipeline was shut down
+            } catch (IOException | RuntimeException e) {
+                error = e;
+                preparedSegments.offer(END_OF_SEGMENTS);
+            }
+        }
+
+        private void storeAcknowledgedSegments() {
+            Realm realm = Realm.getDefaultInstance();
+            try {
+                while (true) {
+                    UploadSegment segment = acknowledgedSegments.take();
+                    if (segment == END_OF_SEGMENTS) {
+                        break;
+                    }
+
+                    storeRemoteIds(realm, segment);
+                    storeUploadCheckpoint(segment.dataType, segment.lastLocalId);
+                }
+            } catch (InterruptedException e) {
+                // pipeline was shut down
+            } catch (RuntimeException e) {
+                error = e;
+            } finally {
+                realm.close();
+            }
+        }
+
+        /**
+         * Returns the next prepared segment or null, if there are no more segments to upload.
+         */
+        UploadSegment takePreparedSegment() throws IOException, InterruptedException {
+            UploadSegment segment = preparedSegments.take();
+            if (error != null) {
+                throw new IOException("Preparation of upload segment failed.", error);
+            }
+            return segment == END_OF_SEGMENTS ? null : segment;
+        }
+
+        void storeAcknowledgedSegment(UploadSegment segment) throws InterruptedException {
+            acknowledgedSegments.put(segment);
+        }
+
+        /**
+         * Waits until the remote IDs of all acknowledged segments are stored.
+         */
+        void finish() throws IOException, InterruptedException {
+            shutdown = true;
+            acknowledgedSegments.put(END_OF_SEGMENTS);
+            storageThread.join();
+            if (error != null) {
+                throw new IOException("Storing remote identifiers failed.", error);
+            }
+        }
+
+        /**
+         * Stops preparing segments. Remote IDs of already acknowledged segments are still stored.
+         */
+        void cancel() {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            preparationThread.interrupt();
+            try {
+                acknowledgedSegments.put(END_OF_SEGMENTS);
+            } catch (InterruptedException e) {
+                storageThread.interrupt();
+            }
+        }
+    }
+
     private static class StateMachineThread extends Thread {
-        boolean stopped;
+        volatile boolean stopped;
         public SyncProcessState nextState = null;
-        private JSONArray downloadedData = null;
         private List<String> remoteIds = null;
-        List<SyncableData> localDatasets = null;
+
+        // Segmented upload state:
+        private DataType uploadDataType = null;
+        private long uploadCursor = 0; // local ID of the last dataset acknowledged by the server
+        private UploadSegment uploadSegment = null; // segment currently sent
+        private UploadPipeline uploadPipeline = null; // only used in pipelined mode
+        private int segmentRetries = 0;
 
         @Override
         public void run() {
             stopped = false;
             nextState = null;
             syncRealm = Realm.getDefaultInstance();
+            SyncMetrics metrics = syncMetrics;
+            metrics.enterState(syncProcessState);
+
+            if (resumedSync) {
+                resumeSyncProcess();
+            }
 
             while (!stopped) {
                 try {
@@ -105,6 +303,18 @@ public class DataManager {
 
                     switch (syncProcessState) {
                         case STARTED:
+                            if (resumedSync) {
+                                // The server rejected the sync process resumed from the checkpoint, so start over with a new one
+                                if (uploadPipeline != null) {
+                                    uploadPipeline.cancel();
+                                    uploadPipeline = null;
+                                }
+                                uploadSegment = null;
+                                discardResumedSyncProcess();
+                            }
+                            // Data uploaded within an unfinished former sync process is deleted by the server
+                            // when a new sync process is started, so it needs to be uploaded again
+                            discardPendingUploads();
                             NotificationOrganizer.showSyncNotification(NotificationOrganizer.SyncType.ServerSync);
                             Log.d(LOG_TAG, "Started Synchronization process.");
                             Log.d(LOG_TAG, "Requesting Sync Process ID.");
@@ -144,71 +354,36 @@ public class DataManager {
 
                             // no break!!
                         case STORED_USER_DATA: {
-                            JSONObject request = new JSONObject();
                             DataType dataType = (syncProcessState == SyncProcessState.STORED_USER_DATA ? DataType.LabData : DataType.UserData);
-                            try {
-                                request.put("datatype", dataType.toString());
-                                if (downloadAllData) {
-                                    request.put("all", "true");
-                                }
-                            } catch (JSONException e) {
-                                e.printStackTrace(); // shouldn't happen
-                            }
 
-                            Log.d(LOG_TAG, "Starting download of " + (downloadAllData ? "ALL " : "unsynched ") + dataType.toString() + ".");
+                            if (downloadAllData && BackendIO.isSyncRangeReconciliationSupported() && hasLocalSynchronizedData(dataType)) {
+                                // The local database still holds synchronized data (e.g. of a previous login),
+                                // so only the days, which differ from the server, need to be downloaded
+                                long hashingStart = System.nanoTime();
+                                SyncRangeReconciler reconciler = new SyncRangeReconciler(syncProcId, dataType, baseQuery(syncRealm));
+                                metrics.addRealmTime(hashingStart);
 
-                            BackendIO.getRemoteDatasetAsync(BackendIO.RemoteDatasetType.SYNC, request, syncProcId, new BackendIO.RemoteRequestCompletedCallback() {
-                                @Override
-                                public void onResponse(JSONObject response) {
+                                reconciler.reconcile(differingDays -> {
                                     if (stopped) {
                                         return;
                                     }
 
-                                    try {
-                                        downloadedData = response.getJSONArray("data");
-                                        numDownloadedDatasets += downloadedData.length();
-                                        Log.d(LOG_TAG, "Received " + downloadedData.length() + " data sets.");
-                                        if (synchronizationStatusChangedListener != null) {
-                                            synchronizationStatusChangedListener.onSynchronizationProgress(numUploadedDatasets, numDownloadedDatasets);
-                                        }
-                                        changeState(syncProcessState == SyncProcessState.SYNC_PROC_ID_RECEIVED ? SyncProcessState.DOWNLOADED_USER_DATA : SyncProcessState.DOWNLOADED_LAB_DATA);
-                                    } catch (JSONException e) {
-                                        handleInvalidResponseError("Could not acquire " + dataType.toString());
-                                    }
-                                }
-
-                                @Override
-                                public void onError(int errorStatusCode, String errorMessage) {
-                                    if (stopped) {
-                                        return;
-                                    }
-
-
-                                    handleCommunicationError(errorStatusCode, errorMessage);
-                                }
-                            });
+                                    startDownload(dataType, differingDays);
+                                });
+                            } else {
+                                startDownload(dataType, null);
+                            }
                         }
 
                         break;
 
                         case DOWNLOADED_USER_DATA:
-                            try {
-                                Log.d(LOG_TAG, "Saving downloaded User Data in local storage.");
-                                storeDownloadedData(DataType.UserData, downloadedData);
-                                changeState(SyncProcessState.STORED_USER_DATA);
-                            } catch (JSONException e) {
-                                handleInvalidResponseError("Could not interpret User Data.");
-                            }
+                            // Downloaded datasets were already marked with the sync process ID when they were stored
+                            changeState(SyncProcessState.STORED_USER_DATA);
                             break;
 
                         case DOWNLOADED_LAB_DATA:
-                            try {
-                                Log.d(LOG_TAG, "Saving downloaded Lab Data in local storage.");
-                                storeDownloadedData(DataType.LabData, downloadedData);
-                                changeState(SyncProcessState.STORED_LAB_DATA);
-                            } catch (JSONException e) {
-                                handleInvalidResponseError("Could not interpret Lab Data.");
-                            }
+                            changeState(SyncProcessState.STORED_LAB_DATA);
                             break;
 
                         case STORED_LAB_DATA:
@@ -217,27 +392,54 @@ public class DataManager {
                                 synchronizationStatusChangedListener.onStartedUploading(numDatasetsToUpload);
                             }
                             // no break!
-                        case STORED_USER_DATA_REMOTE_KEYS: {
-
-                            JSONArray dataToUpload = new JSONArray();
-                            DataType dataType = syncProcessState == SyncProcessState.STORED_LAB_DATA ? DataType.UserData : DataType.SensorData;
-                            localDatasets = new ArrayList<>();
-
-                            Log.d(LOG_TAG, "Gathering " + (downloadAllData ? "ALL" : "unsynched") + " local " + dataType.toString() + ".");
-
-                            getLocalDataToUpload(dataType, dataToUpload, localDatasets);
+                        case STORED_USER_DATA_REMOTE_KEYS:
+                            uploadDataType = syncProcessState == SyncProcessState.STORED_LAB_DATA ? DataType.UserData : DataType.SensorData;
+                            uploadCursor = restoreUploadCheckpoint(uploadDataType);
+                            segmentRetries = 0;
+                            uploadSegment = null;
+                            if (pipelinedUpload) {
+                                uploadPipeline = new UploadPipeline(uploadDataType, uploadCursor);
+                            }
+                            Log.d(LOG_TAG, "Gathering " + (downloadAllData ? "ALL" : "unsynched") + " local " + uploadDataType.toString() + ".");
+                            BackendIO.serverLog(Log.DEBUG, LOG_TAG, "Number of " + uploadDataType + " datasets to upload: " + countLocalDataToUpload(uploadDataType, uploadCursor));
+                            // no break!
+                        case STORED_SEGMENT_REMOTE_KEYS: {
+                            DataType dataType = uploadDataType;
+                            UploadSegment segment;
+
+                            if (uploadPipeline != null) {
+                                // A failed segment is retried, otherwise continue with the next prepared one
+                                segment = uploadSegment != null ? uploadSegment : uploadPipeline.takePreparedSegment();
+                                if (segment == null) {
+                                    uploadPipeline.finish();
+                                    uploadPipeline = null;
+                                }
+                            } else {
+                                segment = countLocalDataToUpload(dataType, uploadCursor) == 0 ? null :
+                                        new UploadSegment(dataType, uploadCursor, BackendIO.getUploadSizeController().getSegmentByteBudget(1));
+                            }
 
-                            JSONObject requestData = new JSONObject();
-                            try {
-                                requestData.put("datatype", dataType.toString());
-                                requestData.put("data", dataToUpload);
-                            } catch (JSONException e) {
-                                e.printStackTrace();
+                            if (segment == null) {
+                                // No more local datasets left for this data type
+                                Log.d(LOG_TAG, "Upload of " + dataType.toString() + " finished.");
+                                changeState(dataType == DataType.UserData ? SyncProcessState.STORED_USER_DATA_REMOTE_KEYS : SyncProcessState.STORED_SENSOR_DATA_REMOTE_KEYS);
+                                break;
                             }
 
-                            Log.d(LOG_TAG, "Starting upload of " + dataType.toString() + " (" + localDatasets.size() + " data sets).");
+                            uploadSegment = segment;
+
+                            Log.d(LOG_TAG, "Starting upload of " + dataType.toString() + " segment after local dataset " + segment.afterLocalId + ".");
 
-                            BackendIO.sendRemoteDatasetAsync(requestData, BackendIO.RemoteDatasetType.SYNC, syncProcId, new BackendIO.RemoteRequestCompletedCallback() {
+                            // Unless it was already prepared by the upload pipeline, the segment is serialized
+                            // from Realm directly into the request body on BackendIO's request thread
+                            long expectedBytes = segment.body != null ? segment.body.length() : segment.maxBytes;
+                            BackendIO.sendStreamingDatasetAsync(BackendIO.RemoteDatasetType.SYNC, syncProcId, expectedBytes, writer -> {
+                                if (segment.body != null) {
+                                    writer.write(segment.body);
+                                } else {
+                                    writeUploadSegment(segment, writer);
+                                }
+                            }, new BackendIO.RemoteRequestCompletedCallback() {
                                 @Override
                                 public void onResponse(JSONObject response) {
                                     if (stopped) {
@@ -245,11 +447,9 @@ public class DataManager {
                                     }
 
                                     try {
-                                        // TODO: Implement segmented upload of SensorData, for returning Upload Progress feedbacks and  limit the size of single transmission (to make process cancelable)
-                                                // Note: Too risky to touch this before the beginning of the study. We'll optimize this for the second study.
                                         JSONArray remoteIdsJson = response.getJSONArray("identifiers");
                                         int numRemoteIds = remoteIdsJson.length();
-                                        if (numRemoteIds != localDatasets.size()) {
+                                        if (numRemoteIds != segment.uploadedLocalIds.size()) {
                                             handleInvalidResponseError("Received unexpected number of remote identifiers for " + dataType.name());
                                             return;
                                         }
@@ -260,14 +460,14 @@ public class DataManager {
                                             remoteIds.add(remoteIdsJson.getString(i));
                                         }
 
-                                        Log.d(LOG_TAG, "Upload finished. Store " + numRemoteIds + " remote identifiers.");
+                                        Log.d(LOG_TAG, "Segment upload acknowledged. Store " + numRemoteIds + " remote identifiers.");
                                         increaseUploadProgress(numRemoteIds);
 
                                         if (synchronizationStatusChangedListener != null) {
                                             synchronizationStatusChangedListener.onSynchronizationProgress(numUploadedDatasets, numDownloadedDatasets);
                                         }
 
-                                        changeState(syncProcessState == SyncProcessState.STORED_LAB_DATA ? SyncProcessState.UPLOADED_USER_DATA : SyncProcessState.UPLOADED_SENSOR_DATA);
+                                        changeState(SyncProcessState.UPLOADED_SEGMENT);
 
                                     } catch (JSONException e) {
                                         handleInvalidResponseError("Could not acquire " + dataType.name() + " remote identifiers.");
@@ -279,22 +479,47 @@ public class DataManager {
                                     if (stopped) {
                                         return;
                                     }
-                                    handleCommunicationError(errorStatusCode, errorMessage);
+
+                                    if (errorStatusCode == 401 || isSyncProcessRejected(errorStatusCode) || segmentRetries >= MAX_SEGMENT_UPLOAD_RETRIES) {
+                                        handleCommunicationError(errorStatusCode, errorMessage);
+                                        return;
+                                    }
+
+                                    Log.w(LOG_TAG, "Upload of " + dataType.name() + " segment failed (" + errorStatusCode + "). Retrying segment.");
+                                    changeState(SyncProcessState.SEGMENT_UPLOAD_FAILED);
                                 }
                             });
                         }
                         break;
 
-                        case UPLOADED_USER_DATA:
-                            Log.d(LOG_TAG, "Storing " + remoteIds.size() + " User Data remote keys.");
-                            storeRemoteIds(localDatasets, remoteIds);
-                            changeState(SyncProcessState.STORED_USER_DATA_REMOTE_KEYS);
+                        case SEGMENT_UPLOAD_FAILED:
+                            // Only the unacknowledged segment is sent again, after a short delay
+                            segmentRetries++;
+                            metrics.countUploadRetry();
+                            synchronized (syncLock) {
+                                syncLock.wait(SEGMENT_UPLOAD_RETRY_DELAY_MS * segmentRetries);
+                                if (nextState == null) {
+                                    // do not overwrite a cancellation which arrived during the delay
+                                    nextState = SyncProcessState.STORED_SEGMENT_REMOTE_KEYS;
+                                }
+                            }
                             break;
 
-                        case UPLOADED_SENSOR_DATA:
-                            Log.d(LOG_TAG, "Storing " + remoteIds.size() + " Sensor Data remote keys.");
-                            storeRemoteIds(localDatasets, remoteIds);
-                            changeState(SyncProcessState.STORED_SENSOR_DATA_REMOTE_KEYS);
+                        case UPLOADED_SEGMENT:
+                            Log.d(LOG_TAG, "Storing " + remoteIds.size() + " " + uploadDataType.name() + " remote keys.");
+                            uploadSegment.remoteIds = remoteIds;
+                            if (uploadPipeline != null) {
+                                // stored on the pipeline's storage thread while the next segment is sent
+                                uploadPipeline.storeAcknowledgedSegment(uploadSegment);
+                            } else {
+                                storeRemoteIds(syncRealm, uploadSegment);
+                                storeUploadCheckpoint(uploadDataType, uploadSegment.lastLocalId);
+                            }
+                            uploadCursor = uploadSegment.lastLocalId;
+                            uploadSegment = null;
+                            segmentRetries = 0;
+                            metrics.countUploadSegment();
+                            changeState(SyncProcessState.STORED_SEGMENT_REMOTE_KEYS);
                             break;
 
 
@@ -328,6 +553,13 @@ public class DataManager {
                                         return;
                                     }
 
+                                    if (resumedSync && errorStatusCode == 409) {
+                                        // The process was killed after the server had confirmed the sync process
+                                        Log.d(LOG_TAG, "Resumed sync process was already confirmed by server.");
+                                        changeState(SyncProcessState.SYNC_CONFIRMED);
+                                        return;
+                                    }
+
                                     handleCommunicationError(errorStatusCode, errorMessage);
                                 }
                             });
@@ -361,6 +593,8 @@ public class DataManager {
                                 synchronizationStatusChangedListener.onSynchronizationCompleted(numUploadedDatasets, numDownloadedDatasets);
                             }
                             setLocalSynchronizationState(true);
+                            clearUploadCheckpoint();
+                            clearSyncStateCheckpoint();
                             stopped = true;
                     } // end switch
                 } catch (Exception e) {
@@ -369,9 +603,25 @@ public class DataManager {
                 }
 
                 if (stopped) {
+                    if (uploadPipeline != null) {
+                        uploadPipeline.cancel();
+                        uploadPipeline = null;
+                    }
+                    JSONObject metricsSummary = metrics.finish(syncProcId, numUploadedDatasets, numDownloadedDatasets);
                     initState();
                     syncRealm.close();
                     NotificationOrganizer.hideSyncNotification(NotificationOrganizer.SyncType.ServerSync);
+
+                    if (syncMetricsLogging) {
+                        BackendIO.serverLog(Log.INFO, LOG_TAG, "Sync metrics", () -> "Sync metrics: " + metricsSummary);
+                    } else {
+                        Log.i(LOG_TAG, "Sync metrics: " + metricsSummary);
+                    }
+
+                    // send the log messages of this sync process while the connection is up
+                    BackendIO.serverLog(Log.INFO, LOG_TAG, "Request lanes:\n" + BackendIO.getRequestLaneReport());
+                    BackendIO.serverLog(Log.INFO, LOG_TAG, "Endpoints:\n" + BackendIO.getEndpointMetrics().getReport());
+                    BackendIO.flushServerLog();
                     break;
                 }
 
@@ -385,13 +635,72 @@ public class DataManager {
                         if (nextState != null) {
                             syncProcessState = nextState;
                             nextState = null;
+                            metrics.enterState(syncProcessState);
                         }
                     }
+
+                    if (RESUMABLE_STATES.contains(syncProcessState)) {
+                        storeSyncStateCheckpoint();
+                    }
                 } catch (InterruptedException e) {
                     // shouldn't happen
                 }
             } // end state loop
         } // end run method
+
+        /**
+         * Downloads the datasets of the given type from the server and stores them.
+         *
+         * @param days If not null, only the datasets created on these days ("yyyy-MM-dd") are downloaded.
+         */
+        private void startDownload(DataType dataType, @Nullable List<String> days) {
+            if (days != null && days.isEmpty()) {
+                Log.d(LOG_TAG, "Local " + dataType.toString() + " is up to date, skipping download.");
+                changeState(dataType == DataType.UserData ? SyncProcessState.DOWNLOADED_USER_DATA : SyncProcessState.DOWNLOADED_LAB_DATA);
+                return;
+            }
+
+            JSONObject request = new JSONObject();
+            try {
+                request.put("datatype", dataType.toString());
+                if (downloadAllData) {
+                    request.put("all", "true");
+                }
+                if (days != null) {
+                    request.put("days", TextUtils.join(",", days));
+                }
+            } catch (JSONException e) {
+                e.printStackTrace(); // shouldn't happen
+            }
+
+            Log.d(LOG_TAG, "Starting download of " + (downloadAllData ? "ALL " : "unsynched ") + dataType.toString()
+                    + (days != null ? " of " + days.size() + " days." : "."));
+
+            List<Long> storedLocalIds = new ArrayList<>();
+
+            // The response is parsed and stored in batches on BackendIO's request thread while it is received
+            BackendIO.getStreamingDatasetAsync(BackendIO.RemoteDatasetType.SYNC, request, syncProcId, reader -> readAndStoreDownloadedData(this, dataType, reader, storedLocalIds), new BackendIO.RemoteRequestCompletedCallback() {
+                @Override
+                public void onResponse(JSONObject response) {
+                    if (stopped) {
+                        return;
+                    }
+
+                    Log.d(LOG_TAG, "Received and stored " + storedLocalIds.size() + " data sets.");
+                    changeState(dataType == DataType.UserData ? SyncProcessState.DOWNLOADED_USER_DATA : SyncProcessState.DOWNLOADED_LAB_DATA);
+                }
+
+                @Override
+                public void onError(int errorStatusCode, String errorMessage) {
+                    if (stopped) {
+                        return;
+                    }
+
+
+                    handleCommunicationError(errorStatusCode, errorMessage);
+                }
+            });
+        }
     }
 
     public static boolean isSyncInProgress() {
@@ -406,49 +715,280 @@ public class DataManager {
         return realm.where(SyncableData.class).equalTo("userId", BackendIO.getCurrentUser().id);
     }
 
-    private static void getLocalDataToUpload(DataType dataType, JSONArray jsonData, List<SyncableData> localDatasetList) {
-        Realm realm = syncRealm;
-        RealmResults<SyncableData> localDatasets = baseQuery(realm)
+    /**
+     * Serializes the next segment of local datasets, which need to be uploaded, into the
+     * request body, until the segment's byte budget is reached. Only one dataset is kept in
+     * memory as JSON at a time.
+     * This is called on the request's background thread, so it uses its own Realm instance.
+     */
+    private static void writeUploadSegment(UploadSegment segment, Writer writer) throws IOException {
+        SyncMetrics metrics = syncMetrics;
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            long queryStart = System.nanoTime();
+            RealmResults<SyncableData> localDatasets = baseQuery(realm)
+                    .equalTo("dataTypeStr", segment.dataType.toString())
+                    .isNull("lastSyncId")
+                    .greaterThan("localId", segment.afterLocalId)
+                    .sort("localId")
+                    .limit(MAX_UPLOAD_SEGMENT_DATASETS)
+                    .findAll();
+            metrics.addRealmTime(queryStart);
+
+            // SensorData is sent in binary format, if negotiated with the server
+            boolean binarySensorPayload = BackendIO.isBinarySensorDataAccepted();
+
+            writer.write("{\"datatype\":");
+            writer.write(JSONObject.quote(segment.dataType.toString()));
+            writer.write(",\"data\":[");
+
+            for (SyncableData localDataset : localDatasets) {
+                segment.lastLocalId = localDataset.getLocalId();
+                segment.gatheredLocalIds.add(segment.lastLocalId);
+
+                long serializationStart = System.nanoTime();
+                JSONObject remoteJsonObject = localDataset.toRemoteJsonObject(binarySensorPayload);
+                if (remoteJsonObject == null) {
+                    // data set is locally marked for deletion.
+                    // It will be deleted , after sync process has finished, in markDataAsSynched()
+                    continue;
+                }
+
+                String remoteJson = remoteJsonObject.toString();
+                metrics.addJsonTime(serializationStart);
+                if (!segment.uploadedLocalIds.isEmpty()) {
+                    writer.write(',');
+                }
+                writer.write(remoteJson);
+                segment.bytes += remoteJson.length() + 1;
+                segment.uploadedLocalIds.add(segment.lastLocalId);
+
+                if (segment.bytes >= segment.maxBytes) {
+                    // Segment is full, the remaining datasets are sent in the following segments
+                    break;
+                }
+            }
+
+            writer.write("]}");
+            Log.v(LOG_TAG, "Serialized " + segment.uploadedLocalIds.size() + " local " + segment.dataType + " datasets for upload.");
+        } finally {
+            realm.close();
+        }
+    }
+
+    private static List<SyncableData> getLocalDatasets(Realm realm, List<Long> localIds) {
+        if (localIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        return baseQuery(realm).in("localId", localIds.toArray(new Long[0])).findAll();
+    }
+
+    private static boolean hasLocalSynchronizedData(DataType dataType) {
+        return baseQuery(syncRealm)
+                .equalTo("dataTypeStr", dataType.toString())
+                .isNotNull("remoteId")
+                .count() > 0;
+    }
+
+    private static long countLocalDataToUpload(DataType dataType, long afterLocalId) {
+        long start = System.nanoTime();
+        long count = baseQuery(syncRealm)
                 .equalTo("dataTypeStr", dataType.toString())
                 .isNull("lastSyncId")
-                .limit(1000) // Limit to 1000 items to avoid OutOfMemoryErrors. If there are more items, we transfer chunks of data in every sync process.
-                .findAll();
+                .greaterThan("localId", afterLocalId)
+                .count();
+        syncMetrics.addRealmTime(start);
+        return count;
+    }
+
+    /**
+     * Returns the local ID of the last dataset of the given type, which was acknowledged by the
+     * server within the current sync process, or 0 if there is no such checkpoint.
+     * <p>
+     * The checkpoint is bound to the server's sync process ID, which is new for each sync process.
+     * So it only takes effect, if an interrupted sync process is resumed with its former ID
+     * (see {@link #restoreSyncStateCheckpoint()}). Otherwise, all unsynchronized datasets are uploaded again.
+     */
+    private static long restoreUploadCheckpoint(DataType dataType) {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncUploadCheckpoint);
+        String checkpointStr = StudyCompanion.getUserPreferences().getString(prefName, "");
+        if (Utils.nullOrEmpty(checkpointStr)) {
+            return 0;
+        }
+
+        try {
+            JSONObject checkpoint = new JSONObject(checkpointStr);
+            if (checkpoint.getString("sync_id").equals(syncProcId) && checkpoint.getString("datatype").equals(dataType.toString())) {
+                long localId = checkpoint.getLong("local_id");
+                Log.d(LOG_TAG, "Resuming upload of " + dataType + " after local dataset " + localId + ".");
+                return localId;
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
 
-        int numDatasets = localDatasets.size();
-        BackendIO.serverLog(Log.DEBUG, LOG_TAG, "Number of " + dataType + " datasets to upload: "+ numDatasets);
+        return 0;
+    }
 
-        int count = 1;
+    private static void storeUploadCheckpoint(DataType dataType, long lastAcknowledgedLocalId) {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncUploadCheckpoint);
+        JSONObject checkpoint = new JSONObject();
+        try {
+            checkpoint.put("sync_id", syncProcId);
+            checkpoint.put("datatype", dataType.toString());
+            checkpoint.put("local_id", lastAcknowledgedLocalId);
+        } catch (JSONException e) {
+            e.printStackTrace(); // shouldn't happen
+        }
+        StudyCompanion.getUserPreferences().edit().putString(prefName, checkpoint.toString()).apply();
+    }
 
-        for (SyncableData localDataset : localDatasets) {
-            Log.v(LOG_TAG, "Gathering local " + dataType + " dataset: " + count + " of " + numDatasets);
-            count++;
-
-            JSONObject remoteJsonObject = localDataset.toRemoteJsonObject();
-            syncedDatasets.add(localDataset);
-            if (remoteJsonObject == null) {
-                // data set is locally marked for deletion.
-                // It will be deleted , after sync process has finished, in markDataAsSynched()
-                continue;
+    private static void clearUploadCheckpoint() {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncUploadCheckpoint);
+        StudyCompanion.getUserPreferences().edit().remove(prefName).apply();
+    }
+
+    /**
+     * Persists the current phase of the sync process along with the server's sync process ID,
+     * so the sync process can be resumed if the app process is killed before it has finished.
+     */
+    private static void storeSyncStateCheckpoint() {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncStateCheckpoint);
+        JSONObject checkpoint = new JSONObject();
+        try {
+            checkpoint.put("sync_id", syncProcId);
+            checkpoint.put("state", syncProcessState.name());
+            checkpoint.put("download_all", downloadAllData);
+        } catch (JSONException e) {
+            e.printStackTrace(); // shouldn't happen
+        }
+        StudyCompanion.getUserPreferences().edit().putString(prefName, checkpoint.toString()).apply();
+    }
+
+    /**
+     * Restores the phase of an interrupted sync process from its checkpoint.
+     *
+     * @return true, if the sync process is resumed.
+     */
+    private static boolean restoreSyncStateCheckpoint() {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncStateCheckpoint);
+        String checkpointStr = StudyCompanion.getUserPreferences().getString(prefName, "");
+        if (Utils.nullOrEmpty(checkpointStr)) {
+            return false;
+        }
+
+        try {
+            JSONObject checkpoint = new JSONObject(checkpointStr);
+            SyncProcessState state = SyncProcessState.valueOf(checkpoint.getString("state"));
+            if (!RESUMABLE_STATES.contains(state)) {
+                return false;
+            }
+
+            if (downloadAllData && !checkpoint.getBoolean("download_all")) {
+                // All data has to be downloaded now (e.g. after a new login), which the interrupted sync process might have skipped
+                Log.d(LOG_TAG, "Discarding sync state checkpoint, since all data needs to be downloaded.");
+                clearUploadCheckpoint();
+                clearSyncStateCheckpoint();
+                return false;
             }
-            jsonData.put(remoteJsonObject);
-            localDatasetList.add(localDataset);
+
+            syncProcId = checkpoint.getString("sync_id");
+            downloadAllData = checkpoint.getBoolean("download_all");
+            syncProcessState = state;
+            resumedSync = true;
+            BackendIO.serverLog(Log.INFO, LOG_TAG, "Resuming sync process " + syncProcId + " at state " + state + ".");
+            return true;
+        } catch (JSONException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Could not restore sync state checkpoint: " + e);
+            clearSyncStateCheckpoint();
+            return false;
         }
+    }
 
+    private static void clearSyncStateCheckpoint() {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncStateCheckpoint);
+        StudyCompanion.getUserPreferences().edit().remove(prefName).apply();
     }
 
-    private static void storeRemoteIds(List<SyncableData> localDatasets, List<String> remoteIds) {
+    /**
+     * Restores the in-memory state of a sync process resumed from its checkpoint. Called on the state machine thread.
+     */
+    private static void resumeSyncProcess() {
+        // Datasets transferred before the interruption are already tagged with the sync process ID in Realm,
+        // so only the notification and the listener need to catch up
+        NotificationOrganizer.showSyncNotification(NotificationOrganizer.SyncType.ServerSync);
 
-        Realm realm = syncRealm;
+        if (synchronizationStatusChangedListener == null) {
+            return;
+        }
+
+        switch (syncProcessState) {
+            case STORED_USER_DATA:
+                synchronizationStatusChangedListener.onStartedDownloading();
+                break;
+            case STORED_USER_DATA_REMOTE_KEYS:
+            case STORED_SENSOR_DATA_REMOTE_KEYS:
+            case SYNC_CONFIRMED:
+                determineNumberOfDatasetsToUpload();
+                synchronizationStatusChangedListener.onStartedUploading(numDatasetsToUpload);
+                break;
+        }
+    }
 
+    /**
+     * Resets the state of a resumed sync process, which was rejected by the server, so a new sync process can be started.
+     */
+    private static void discardResumedSyncProcess() {
+        resumedSync = false;
+        syncProcId = null;
+        numUploadedDatasets = 0;
+        numDownloadedDatasets = 0;
+        clearUploadCheckpoint();
+        clearSyncStateCheckpoint();
+    }
+
+    /**
+     * @return true, if the server does not accept (anymore) requests for the current sync process ID,
+     * because it is unknown, already finished or belongs to another user.
+     */
+    private static boolean isSyncProcessRejected(int errorStatusCode) {
+        return errorStatusCode == 403 || errorStatusCode == 404 || errorStatusCode == 409;
+    }
+
+    /**
+     * Stores the remote IDs of an acknowledged upload segment and tags all datasets of the segment
+     * as pending until the server confirms the sync process, see {@link #markDataAsSynched()}.
+     */
+    private static void storeRemoteIds(Realm realm, UploadSegment segment) {
+        List<Long> localIds = segment.uploadedLocalIds;
+        List<String> remoteIds = segment.remoteIds;
+        String pendingSyncId = PENDING_SYNC_ID_PREFIX + syncProcId;
+        long start = System.nanoTime();
         realm.executeTransaction(r -> {
-            if (localDatasets.size() != remoteIds.size()) {
+            if (localIds.size() != remoteIds.size()) {
                 throw new RuntimeException("Sizes of local dataset list and remote ID list differ.");
             }
 
-            for (int i = 0; i < localDatasets.size(); i++) {
-                localDatasets.get(i).setRemoteId(remoteIds.get(i));
+            Map<Long, String> remoteIdsByLocalId = new HashMap<>();
+            for (int i = 0; i < localIds.size(); i++) {
+                remoteIdsByLocalId.put(localIds.get(i), remoteIds.get(i));
+            }
+
+            for (SyncableData localDataset : getLocalDatasets(r, localIds)) {
+                localDataset.setRemoteId(remoteIdsByLocalId.get(localDataset.getLocalId()));
+            }
+
+            // includes the datasets, which were deleted locally before they were ever uploaded
+            if (!segment.gatheredLocalIds.isEmpty()) {
+                baseQuery(r)
+                        .in("localId", segment.gatheredLocalIds.toArray(new Long[0]))
+                        .isNull("lastSyncId")
+                        .findAll()
+                        .setString("lastSyncId", pendingSyncId);
             }
         });
+        syncMetrics.addRealmTime(start);
     }
 
     private static void determineNumberOfDatasetsToUpload() {
@@ -459,60 +999,165 @@ public class DataManager {
                 count();
     }
 
-    private static void storeDownloadedData(DataType dataType, JSONArray data) throws JSONException {
-        Realm realm = syncRealm;
+    /**
+     * Parses a sync download response incrementally and stores the contained datasets in batches
+     * of DOWNLOAD_BATCH_SIZE, each within a single Realm transaction.
+     * This is called on the request's background thread, so it uses its own Realm instance.
+     */
+    private static void readAndStoreDownloadedData(StateMachineThread syncThread, DataType dataType, JsonReader reader, List<Long> storedLocalIds) throws IOException {
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("data")) {
+                    reader.skipValue();
+                    continue;
+                }
 
-        for (int i = 0; i < data.length(); i++) {
-            JSONObject remoteDataset = data.getJSONObject(i);
-            String remoteId = remoteDataset.getString("id");
+                List<JSONObject> batch = new ArrayList<>(DOWNLOAD_BATCH_SIZE);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    batch.add(Utils.readJsonObject(reader));
 
-            SyncableData localDataset = baseQuery(realm).equalTo("remoteId", remoteId).findFirst();
+                    if (batch.size() == DOWNLOAD_BATCH_SIZE) {
+                        storeDownloadedBatch(syncThread, realm, dataType, batch, storedLocalIds);
+                        batch.clear();
+                    }
+                }
+                reader.endArray();
 
-            boolean newDataset = false;
+                if (!batch.isEmpty()) {
+                    storeDownloadedBatch(syncThread, realm, dataType, batch, storedLocalIds);
+                }
+            }
+            reader.endObject();
+        } finally {
+            realm.close();
+        }
+    }
 
-            if (localDataset == null) {
-                // Dataset does not yet exist locally
+    private static void storeDownloadedBatch(StateMachineThread syncThread, Realm realm, DataType dataType, List<JSONObject> batch, List<Long> storedLocalIds) throws IOException {
+        if (syncThread.stopped) {
+            throw new IOException("Sync process was stopped.");
+        }
+
+        SyncMetrics metrics = syncMetrics;
+        long start = System.nanoTime();
+        long jsonTimeNs = 0;
+        try {
+            String[] remoteIds = new String[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                remoteIds[i] = batch.get(i).getString("id");
+            }
 
-                localDataset = new SyncableData(realm);
-                newDataset = true;
+            // Look up all datasets of this batch, which already exist locally, at once
+            Map<String, SyncableData> localDatasetsByRemoteId = new HashMap<>();
+            for (SyncableData localDataset : baseQuery(realm).in("remoteId", remoteIds).findAll()) {
+                localDatasetsByRemoteId.put(localDataset.getRemoteId(), localDataset);
             }
 
+            // effective days of the downloaded UserData before and after the update
+            List<Date> effectiveDays = new ArrayList<>();
+
             realm.beginTransaction();
+            try {
+                long nextLocalId = Utils.getUniqueLocalId(realm, SyncableData.class);
 
-            // Update local dataset with new remote information
-            localDataset.fromJsonObject(remoteDataset, dataType);
+                for (JSONObject remoteDataset : batch) {
+                    SyncableData localDataset = localDatasetsByRemoteId.get(remoteDataset.getString("id"));
+                    boolean newDataset = false;
 
-            // Mark dataset as synced
-            localDataset.setLastSyncId(syncProcId);
+                    if (localDataset == null) {
+                        // Dataset does not yet exist locally
+                        localDataset = new SyncableData();
+                        localDataset.setLocalId(nextLocalId++);
+                        newDataset = true;
+                    }
+                    effectiveDays.add(localDataset.getEffectiveDay());
 
-            if (newDataset) {
-                // insert, if it's a locally new dataset
-                realm.insert(localDataset);
-            }
+                    // Update local dataset with new remote information
+                    long jsonStart = System.nanoTime();
+                    localDataset.fromJsonObject(remoteDataset, dataType);
+                    jsonTimeNs += System.nanoTime() - jsonStart;
+                    effectiveDays.add(localDataset.getEffectiveDay());
 
-            realm.commitTransaction();
+                    // Mark dataset as synced
+                    localDataset.setLastSyncId(syncProcId);
 
-            // store dataset in list of synced datasets
-            syncedDatasets.add(localDataset);
+                    if (newDataset) {
+                        // insert, if it's a locally new dataset
+                        realm.insert(localDataset);
+                    }
+
+                    storedLocalIds.add(localDataset.getLocalId());
+                }
+
+                if (dataType == DataType.UserData) {
+                    DayStateProvider.refreshDayStates(realm, BackendIO.getCurrentUser().id, effectiveDays);
+                }
+
+                realm.commitTransaction();
+            } catch (JSONException | RuntimeException e) {
+                realm.cancelTransaction();
+                throw e;
+            }
+        } catch (JSONException e) {
+            throw new IOException("Could not interpret " + dataType + ".", e);
         }
+        metrics.addRealmTime(start);
+        metrics.moveRealmTimeToJson(jsonTimeNs);
+
+        Log.d(LOG_TAG, "Stored batch of " + batch.size() + " downloaded " + dataType + " data sets.");
+
+        // Called on the thread of the streaming request, but the progress is kept and reported on the main thread,
+        // like for the other responses. The post is handled before the response callback, which is posted afterwards.
+        int batchSize = batch.size();
+        new Handler(Looper.getMainLooper()).post(() -> {
+            numDownloadedDatasets += batchSize;
+            if (synchronizationStatusChangedListener != null) {
+                synchronizationStatusChangedListener.onSynchronizationProgress(numUploadedDatasets, numDownloadedDatasets);
+            }
+        });
     }
 
+    /**
+     * Finalizes the confirmed sync process with bulk operations on all datasets it touched:
+     * Uploaded datasets, which are tagged as pending, are marked with the sync process ID, and datasets
+     * deleted locally or on the server are removed from local storage.
+     */
     private static void markDataAsSynched() {
+        long start = System.nanoTime();
+        String pendingSyncId = PENDING_SYNC_ID_PREFIX + syncProcId;
         Realm realm = syncRealm;
         realm.executeTransaction(r -> {
-            List<SyncableData> deletedLocalDatasets = new ArrayList<>();
-            for (SyncableData syncedDataset : syncedDatasets) {
-                if (syncedDataset.isMarkedForDeletion()) {
-                    deletedLocalDatasets.add(syncedDataset);
-                } else {
-                    syncedDataset.setLastSyncId(syncProcId);
-                }
-            }
-
-            for (SyncableData deletedLocalDataset : deletedLocalDatasets) {
-                deletedLocalDataset.deleteFromRealm();
-            }
+            baseQuery(r)
+                    .equalTo("markedForDeletion", true)
+                    .beginGroup()
+                    .equalTo("lastSyncId", pendingSyncId)
+                    .or()
+                    .equalTo("lastSyncId", syncProcId)
+                    .endGroup()
+                    .findAll()
+                    .deleteAllFromRealm();
+
+            baseQuery(r)
+                    .equalTo("lastSyncId", pendingSyncId)
+                    .findAll()
+                    .setString("lastSyncId", syncProcId);
         });
+        syncMetrics.addRealmTime(start);
+    }
+
+    /**
+     * Removes the pending tag from datasets uploaded within former sync processes, which were never confirmed.
+     */
+    private static void discardPendingUploads() {
+        long start = System.nanoTime();
+        syncRealm.executeTransaction(r -> baseQuery(r)
+                .beginsWith("lastSyncId", PENDING_SYNC_ID_PREFIX)
+                .findAll()
+                .setString("lastSyncId", null));
+        syncMetrics.addRealmTime(start);
     }
 
 
@@ -527,7 +1172,8 @@ public class DataManager {
         numDownloadedDatasets = 0;
         synchronizationStatusChangedListener = null;
         syncProcId = null;
-        syncedDatasets = new ArrayList<>();
+        resumedSync = false;
+        syncMetrics = new SyncMetrics();
         stateMachineThread = new StateMachineThread();
     }
 
@@ -556,9 +1202,39 @@ public class DataManager {
             downloadAllData = true;
         }
 
+        // An interrupted sync process is continued with the same server sync process,
+        // so data which was already transferred does not need to be sent again.
+        restoreSyncStateCheckpoint();
+
         stateMachineThread.start();
     }
 
+    /**
+     * Enables or disables pipelined upload, in which the next upload segments are prepared and the
+     * remote IDs of acknowledged segments are stored while another segment is being transferred.
+     * Takes effect with the next upload phase of a sync process.
+     */
+    public static void setPipelinedUploadEnabled(boolean enabled) {
+        pipelinedUpload = enabled;
+    }
+
+    /**
+     * Enables or disables sending the metrics summary of each sync process to the server log.
+     * Summaries are kept locally in any case, see {@link #getSyncMetricsHistory()}.
+     */
+    public static void setSyncMetricsLoggingEnabled(boolean enabled) {
+        syncMetricsLogging = enabled;
+    }
+
+    /**
+     * @return Metrics summaries of the most recent sync processes, oldest first.
+     * Each summary contains the wall time, dataset counts, transferred bytes, Realm and JSON time
+     * as well as [visits, ms] of each visited sync state.
+     */
+    public static List<JSONObject> getSyncMetricsHistory() {
+        return SyncMetrics.getHistory();
+    }
+
     public static void checkPermission() throws NoPermissionException {
         User currentUser = BackendIO.getCurrentUser();
         if (currentUser == null || currentUser.role != Role.Participant) {
@@ -579,6 +1255,12 @@ public class DataManager {
     }
 
     private static void handleCommunicationError(int errorStatusCode, String errorMessage) {
+        if (resumedSync && isSyncProcessRejected(errorStatusCode)) {
+            BackendIO.serverLog(Log.WARN, LOG_TAG, "Server rejected resumed sync process " + syncProcId + " (" + errorStatusCode + "). Starting a new sync process.");
+            changeState(SyncProcessState.STARTED);
+            return;
+        }
+
         handleError(getAppContext().getString(R.string.datamanager_error_communication, errorStatusCode, errorMessage));
     }
 
@@ -620,6 +1302,8 @@ public class DataManager {
 
             realm.executeTransaction(r -> {
                 try {
+                    Date previousEffectiveDay = localDataset.getEffectiveDay();
+
                     // Update dataset in local database
                     localDataset.fromJsonObject(dataCopy, dataType);
 
@@ -632,6 +1316,10 @@ public class DataManager {
                         r.insert(localDatasetFinal);
                     }
 
+                    if (dataType == DataType.UserData) {
+                        DayStateProvider.refreshDayStates(r, localDataset.getUserId(), Arrays.asList(previousEffectiveDay, localDataset.getEffectiveDay()));
+                    }
+
                 } catch (JSONException | NumberFormatException e) {
                     e.printStackTrace();
                 }
@@ -647,6 +1335,32 @@ public class DataManager {
         realm.close();
     }
 
+    /**
+     * Stores a new SensorData dataset, whose samples are given as typed columns.
+     * In contrast to {@link #updateOrInsertData(DataType, JSONObject)}, the samples are not converted to JSON.
+     *
+     * @param chunk Unmanaged chunk. It is copied into the local database.
+     */
+    public static void insertSensorChunk(SensorChunk chunk) throws NoPermissionException {
+        checkPermission();
+
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            realm.executeTransaction(r -> {
+                SyncableData localDataset = new SyncableData(r); // Creation date is set implicitly
+                localDataset.setDataType(DataType.SensorData);
+                localDataset.setSensorChunk(chunk);
+                localDataset.invalidate();
+                r.insert(localDataset);
+            });
+        } finally {
+            realm.close();
+        }
+
+        // Mark local database as unsynched due to modification
+        setLocalSynchronizationState(false);
+    }
+
     public static List<JSONObject> getAllDatasets(DataType dataType) throws NoPermissionException {
         checkPermission();
         if (dataType == DataType.SensorData) {
@@ -658,14 +1372,11 @@ public class DataManager {
         RealmResults<SyncableData> localDatasets = baseQuery(realm).equalTo("dataTypeStr", dataType.toString()).equalTo("markedForDeletion", false).findAll();
         List<JSONObject> res = new ArrayList<>(localDatasets.size());
 
-        try {
-            for (SyncableData localDataset : localDatasets) {
-                JSONObject datasetJson = localDataset.toRemoteJsonObject();
-                datasetJson.put("id", localDataset.getLocalId().toString());
+        for (SyncableData localDataset : localDatasets) {
+            JSONObject datasetJson = toLocalJsonObject(localDataset);
+            if (datasetJson != null) {
                 res.add(datasetJson); // return dataset with local ID instead of server ID
             }
-        } catch (JSONException e) {
-
         }
 
         realm.close();
@@ -673,29 +1384,66 @@ public class DataManager {
         return res;
     }
 
+    /**
+     * @return The UserData dataset of the given day (with its local ID as "id"), or null if there is none.
+     */
     public static JSONObject getUserDataForEffectiveDay(Date effectiveDay) throws NoPermissionException {
+        checkPermission();
 
-        List<JSONObject> userData = getAllDatasets(DataType.UserData);
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            SyncableData localDataset = userDataQuery(realm, effectiveDay, effectiveDay).findFirst();
+            return localDataset == null ? null : toLocalJsonObject(localDataset);
+        } finally {
+            realm.close();
+        }
+    }
 
-        long minDateMs = Utils.setTimeToZero(effectiveDay).getTime();
-        long maxDateMs = Utils.setTimeToNextMidnight(effectiveDay).getTime();
+    /**
+     * @return The UserData datasets (with their local IDs as "id") from firstDay to lastDay (inclusive),
+     * by their effective day (at 00:00 local time), in ascending order.
+     */
+    public static Map<Date, JSONObject> getUserDataForEffectiveDays(Date firstDay, Date lastDay) throws NoPermissionException {
+        checkPermission();
 
-        if (userData.isEmpty()) {
-            return null;
-        }
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            RealmResults<SyncableData> localDatasets = userDataQuery(realm, firstDay, lastDay)
+                    .sort("effectiveDay")
+                    .findAll();
 
-        for (JSONObject dataset : userData) {
-            try {
-                long dataDayMs = Utils.getServerTimeFormat().parse(dataset.optString("effective_day")).getTime();
-                if (dataDayMs >= minDateMs && dataDayMs < maxDateMs) {
-                    return dataset;
+            Map<Date, JSONObject> res = new LinkedHashMap<>();
+            for (SyncableData localDataset : localDatasets) {
+                JSONObject datasetJson = toLocalJsonObject(localDataset);
+                if (datasetJson != null) {
+                    res.put(Utils.setTimeToZero(localDataset.getEffectiveDay()), datasetJson);
                 }
-            } catch (ParseException e) {
-                e.printStackTrace();
             }
+            return res;
+        } finally {
+            realm.close();
         }
+    }
 
-        return null;
+    private static RealmQuery<SyncableData> userDataQuery(Realm realm, Date firstDay, Date lastDay) {
+        return baseQuery(realm)
+                .equalTo("dataTypeStr", DataType.UserData.toString())
+                .equalTo("markedForDeletion", false)
+                .greaterThanOrEqualTo("effectiveDay", Utils.setTimeToZero(firstDay))
+                .lessThan("effectiveDay", Utils.setTimeToNextMidnight(lastDay));
+    }
+
+    /**
+     * @return The dataset as JSON, with its local ID instead of its remote ID as "id".
+     */
+    private static JSONObject toLocalJsonObject(SyncableData localDataset) {
+        JSONObject datasetJson = localDataset.toRemoteJsonObject();
+        try {
+            datasetJson.put("id", localDataset.getLocalId().toString());
+        } catch (JSONException e) {
+            return null;
+        }
+        return datasetJson;
     }
 
     public static boolean deleteDataset(String localId) throws NoPermissionException {
@@ -708,6 +1456,9 @@ public class DataManager {
 
         realm.executeTransaction(r -> {
             localDataset.setMarkedForDeletion(true);
+            if (localDataset.getDataType() == DataType.UserData) {
+                DayStateProvider.refreshDayStates(r, localDataset.getUserId(), Collections.singletonList(localDataset.getEffectiveDay()));
+            }
         });
 
         realm.close();
@@ -767,8 +1518,10 @@ public class DataManager {
         RealmResults<SyncableData> results = realm.where(SyncableData.class).equalTo("userId", user.id).findAll();
         realm.beginTransaction();
         results.deleteAllFromRealm();
+        DayStateProvider.deleteDayStates(realm, user.id);
         realm.commitTransaction();
         realm.close();
+        DayStateProvider.resetDayStatesBuilt(user);
 
         // Reset last sync date
         getObservableLastSyncDate().setValue(null);
@@ -776,6 +1529,12 @@ public class DataManager {
         StudyCompanion.getUserPreferences(user).edit().remove(prefName).apply();
         prefName = StudyCompanion.getAppContext().getString(R.string.dataModified);
         StudyCompanion.getUserPreferences(user).edit().remove(prefName).apply();
+
+        // An interrupted sync process must not be resumed for the wiped data
+        prefName = StudyCompanion.getAppContext().getString(R.string.syncStateCheckpoint);
+        StudyCompanion.getUserPreferences(user).edit().remove(prefName).apply();
+        prefName = StudyCompanion.getAppContext().getString(R.string.syncUploadCheckpoint);
+        StudyCompanion.getUserPreferences(user).edit().remove(prefName).apply();
     }
 
 
@@ -785,6 +1544,7 @@ public class DataManager {
         RealmResults<SyncableData> datasets = baseQuery(realm)
                 .equalTo("dataTypeStr", DataType.SensorData.toString())
                 .isNotNull("lastSyncId")
+                .not().beginsWith("lastSyncId", PENDING_SYNC_ID_PREFIX)
                 .findAll();
 
         realm.executeTransaction(r -> {
@@ -0,0 +1,241 @@
+package de.thwildau.f4f.studycompanion.datamodel;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import de.thwildau.f4f.studycompanion.R;
+import de.thwildau.f4f.studycompanion.StudyCompanion;
+import de.thwildau.f4f.studycompanion.Utils;
+import de.thwildau.f4f.studycompanion.backend.BackendIO;
+import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SyncableData;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.UserDayState;
+import io.realm.Realm;
+import io.realm.RealmResults;
+
+/**
+ * Provides the state of the daily questions per day (filling state and whether there are
+ * questions at all), without evaluating the UserData datasets and field schemas of the whole study period.
+ * <p>
+ * The filling state of a day is updated by DataManager within the same transaction,
+ * in which UserData of that day is written. Question availability does not depend on the UserData, but on the
+ * field schemas and the study begin date, so it is determined on first access and reset when the structures are updated.
+ */
+public class DayStateProvider {
+    private static final String LOG_TAG = "DayStateProvider";
+
+    private DayStateProvider() { }
+
+    /**
+     * @return The states of all days from firstDay to lastDay (inclusive) of the current user,
+     * by day (00:00 local time), in ascending order. The returned objects are detached from Realm.
+     */
+    public static Map<Date, UserDayState> getDayStates(Date firstDay, Date lastDay) throws DataManager.NoPermissionException {
+        DataManager.checkPermission();
+        String userId = BackendIO.getCurrentUser().id;
+        String studyBegin = getStudyBegin();
+        SimpleDateFormat dayFormat = newDayFormat();
+
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            ensureDayStatesBuilt(realm, userId);
+
+            Map<String, UserDayState> storedDayStates = new HashMap<>();
+            for (UserDayState dayState : realm.where(UserDayState.class).equalTo("userId", userId).findAll()) {
+                storedDayStates.put(dayState.getDay(), dayState);
+            }
+
+            List<Date> days = new ArrayList<>();
+            Calendar cal = Calendar.getInstance();
+            cal.setTime(Utils.setTimeToZero(firstDay));
+            Date end = Utils.setTimeToNextMidnight(lastDay);
+            while (cal.getTime().before(end)) {
+                days.add(cal.getTime());
+                cal.add(Calendar.DATE, 1);
+            }
+
+            // Determine question availability, where it is unknown or outdated
+            Map<Date, Boolean> determinedAvailability = new HashMap<>();
+            for (Date day : days) {
+                UserDayState dayState = storedDayStates.get(dayFormat.format(day));
+                if (dayState == null || dayState.getQuestionsAvailable() == null || !studyBegin.equals(dayState.getQuestionsStudyBegin())) {
+                    determinedAvailability.put(day, Utils.existQuestions(day));
+                }
+            }
+
+            if (!determinedAvailability.isEmpty()) {
+                realm.executeTransaction(r -> {
+                    for (Map.Entry<Date, Boolean> availability : determinedAvailability.entrySet()) {
+                        String dayKey = dayFormat.format(availability.getKey());
+                        UserDayState dayState = getOrCreateDayState(r, userId, dayKey, storedDayStates.get(dayKey));
+                        dayState.setQuestionsAvailable(availability.getValue());
+                        dayState.setQuestionsStudyBegin(studyBegin);
+                        storedDayStates.put(dayKey, dayState);
+                    }
+                });
+            }
+
+            Map<Date, UserDayState> res = new LinkedHashMap<>();
+            for (Date day : days) {
+                res.put(day, realm.copyFromRealm(storedDayStates.get(dayFormat.format(day))));
+            }
+            return res;
+        } finally {
+            realm.close();
+        }
+    }
+
+    /**
+     * @return The state of the given day of the current user. The returned object is detached from Realm.
+     */
+    public static UserDayState getDayState(Date day) throws DataManager.NoPermissionException {
+        return getDayStates(day, day).get(Utils.setTimeToZero(day));
+    }
+
+    /**
+     * @return true, if there is at least one question for the given day, that the current user can answer
+     * (see {@link Utils#existQuestions(Date)}).
+     */
+    public static boolean areQuestionsAvailable(Date day) {
+        try {
+            return getDayState(day).getQuestionsAvailable();
+        } catch (DataManager.NoPermissionException e) {
+            // day states are only kept for participants
+            return Utils.existQuestions(day);
+        }
+    }
+
+    /**
+     * Recomputes the filling state of the days of the given effective days
+     * from the UserData stored for them. Must be called within a write transaction.
+     */
+    static void refreshDayStates(Realm realm, String userId, Collection<Date> effectiveDays) {
+        SimpleDateFormat dayFormat = newDayFormat();
+        Set<String> refreshedDays = new HashSet<>();
+
+        for (Date effectiveDay : effectiveDays) {
+            if (effectiveDay == null) {
+                continue;
+            }
+
+            Date day = Utils.setTimeToZero(effectiveDay);
+            String dayKey = dayFormat.format(day);
+            if (!refreshedDays.add(dayKey)) {
+                continue;
+            }
+
+            // same dataset as returned by DataManager.getUserDataForEffectiveDay()
+            SyncableData userData = realm.where(SyncableData.class)
+                    .equalTo("userId", userId)
+                    .equalTo("dataTypeStr", DataType.UserData.toString())
+                    .equalTo("markedForDeletion", false)
+                    .greaterThanOrEqualTo("effectiveDay", day)
+                    .lessThan("effectiveDay", Utils.setTimeToNextMidnight(day))
+                    .findFirst();
+
+            JSONObject dayData = null;
+            if (userData != null && userData.getJsonData() != null) {
+                try {
+                    dayData = new JSONObject(userData.getJsonData());
+                } catch (JSONException e) {
+                    Log.w(LOG_TAG, "Invalid UserData dataset " + userData.getLocalId() + ": " + e);
+                }
+            }
+
+            UserDayState dayState = getOrCreateDayState(realm, userId, dayKey,
+                    realm.where(UserDayState.class).equalTo("id", userId + "/" + dayKey).findFirst());
+            dayState.setFillingState(Utils.getUserInputState(dayData));
+        }
+    }
+
+    /**
+     * Resets the question availability of all days, e.g. after the field schemas were updated.
+     * Must be called within a write transaction.
+     */
+    static void invalidateQuestionAvailability(Realm realm) {
+        realm.where(UserDayState.class).isNotNull("questionsAvailable").findAll().setNull("questionsAvailable");
+    }
+
+    /**
+     * Deletes the day states of the given user. Must be called within a write transaction.
+     */
+    static void deleteDayStates(Realm realm, String userId) {
+        realm.where(UserDayState.class).equalTo("userId", userId).findAll().deleteAllFromRealm();
+    }
+
+    static void resetDayStatesBuilt(User user) {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.dayStatesBuilt);
+        StudyCompanion.getUserPreferences(user).edit().remove(prefName).apply();
+    }
+
+    /**
+     * Builds the day states from all stored UserData, if this has not been done for the user yet
+     * (e.g. for UserData stored by a former app version).
+     */
+    private static void ensureDayStatesBuilt(Realm realm, String userId) {
+        SharedPreferences prefs = StudyCompanion.getUserPreferences();
+        String prefName = StudyCompanion.getAppContext().getString(R.string.dayStatesBuilt);
+        if (prefs.getBoolean(prefName, false)) {
+            return;
+        }
+
+        realm.executeTransaction(r -> {
+            RealmResults<SyncableData> userData = r.where(SyncableData.class)
+                    .equalTo("userId", userId)
+                    .equalTo("dataTypeStr", DataType.UserData.toString())
+                    .isNotNull("effectiveDay")
+                    .findAll();
+
+            List<Date> effectiveDays = new ArrayList<>(userData.size());
+            for (SyncableData dataset : userData) {
+                effectiveDays.add(dataset.getEffectiveDay());
+            }
+
+            deleteDayStates(r, userId);
+            refreshDayStates(r, userId, effectiveDays);
+        });
+
+        prefs.edit().putBoolean(prefName, true).apply();
+        Log.d(LOG_TAG, "Built day states of user " + userId + ".");
+    }
+
+    private static UserDayState getOrCreateDayState(Realm realm, String userId, String dayKey, UserDayState storedDayState) {
+        if (storedDayState != null) {
+            return storedDayState;
+        }
+        return realm.copyToRealm(new UserDayState(userId, dayKey));
+    }
+
+    private static String getStudyBegin() {
+        User currentUser = BackendIO.getCurrentUser();
+        if (currentUser == null || Utils.nullOrEmpty(currentUser.anamnesisData)) {
+            return "";
+        }
+
+        try {
+            return new JSONObject(currentUser.anamnesisData).optString("study_begin_date");
+        } catch (JSONException e) {
+            return "";
+        }
+    }
+
+    private static SimpleDateFormat newDayFormat() {
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.US); // local time
+    }
+}
@@ -0,0 +1,130 @@
+package de.thwildau.f4f.studycompanion.datamodel;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Date;
+
+import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SyncableData;
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.FieldAttribute;
+import io.realm.RealmMigration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmResults;
+import io.realm.RealmSchema;
+
+/**
+ * Migrates the local Realm database to the current schema version, so app updates changing the
+ * data model keep the local data (in particular datasets, which have not been synchronized yet).
+ * <p>
+ * Each schema change needs a new step, which migrates the schema from its previous version:
+ * Increase SCHEMA_VERSION, append the step to STEPS and apply the same change to the model classes.
+ * Steps are applied one after another, so a database of any former version can be migrated.
+ */
+public class LocalDatabaseMigration implements RealmMigration {
+    private static final String LOG_TAG = "LocalDatabaseMigration";
+
+    public static final long SCHEMA_VERSION = 4;
+
+    private interface Step {
+        void migrate(DynamicRealm realm);
+    }
+
+    // STEPS[i] migrates from schema version i + 1 to version i + 2
+    private static final Step[] STEPS = {
+            LocalDatabaseMigration::migrateToVersion2,
+            LocalDatabaseMigration::migrateToVersion3,
+            LocalDatabaseMigration::migrateToVersion4,
+    };
+
+    @Override
+    public void migrate(@NonNull DynamicRealm realm, long oldVersion, long newVersion) {
+        if (oldVersion < 1) {
+            // Version 1 is the first version of the app, so this shouldn't happen
+            throw new IllegalStateException("Cannot migrate local database from schema version " + oldVersion + ".");
+        }
+
+        for (long version = oldVersion; version < newVersion; version++) {
+            Log.i(LOG_TAG, "Migrating local database from schema version " + version + " to " + (version + 1) + ".");
+            STEPS[(int) version - 1].migrate(realm);
+        }
+    }
+
+    /**
+     * Adds the typed sensor data storage and the indexes of the fields filtered on by the DataManager queries.
+     */
+    private static void migrateToVersion2(DynamicRealm realm) {
+        RealmSchema schema = realm.getSchema();
+
+        RealmObjectSchema sensorChunk = schema.create("SensorChunk")
+                .addField("sensorType", String.class)
+                .addField("newFirmware", boolean.class)
+                .addField("sampleCount", int.class)
+                .addField("timestamps", byte[].class)
+                .addField("intValues", byte[].class)
+                .addField("floatValues", byte[].class)
+                .addField("earPositionQuality", byte[].class)
+                .addField("rrCounts", byte[].class)
+                .addField("rrValues", byte[].class)
+                .setEmbedded(true);
+
+        schema.get("SyncableData")
+                .addRealmObjectField("sensorChunk", sensorChunk)
+                .addIndex("userId")
+                .addIndex("dataTypeStr")
+                .addIndex("lastSyncId")
+                .addIndex("markedForDeletion");
+    }
+
+    /**
+     * Adds the indexed effective day of UserData, taken from the "effective_day" field of the stored datasets.
+     */
+    private static void migrateToVersion3(DynamicRealm realm) {
+        realm.getSchema().get("SyncableData")
+                .addField("effectiveDay", Date.class)
+                .addIndex("effectiveDay");
+
+        RealmResults<DynamicRealmObject> userData = realm.where("SyncableData")
+                .equalTo("dataTypeStr", DataType.UserData.toString())
+                .isNotNull("jsonData")
+                .findAll();
+
+        for (DynamicRealmObject dataset : userData) {
+            try {
+                dataset.setDate("effectiveDay", SyncableData.parseEffectiveDay(new JSONObject(dataset.getString("jsonData"))));
+            } catch (JSONException e) {
+                Log.w(LOG_TAG, "Invalid dataset " + dataset.getLong("localId") + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Adds the precomputed daily question states. They are built from the stored UserData on first access.
+     */
+    private static void migrateToVersion4(DynamicRealm realm) {
+        realm.getSchema().create("UserDayState")
+                .addField("id", String.class, FieldAttribute.PRIMARY_KEY, FieldAttribute.REQUIRED)
+                .addField("userId", String.class, FieldAttribute.INDEXED)
+                .addField("day", String.class)
+                .addField("fillingState", String.class)
+                .addField("questionsAvailable", Boolean.class)
+                .addField("questionsStudyBegin", String.class);
+    }
+
+    // Realm compares the configurations of opened instances, which includes the migration
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LocalDatabaseMigration;
+    }
+
+    @Override
+    public int hashCode() {
+        return LocalDatabaseMigration.class.hashCode();
+    }
+}
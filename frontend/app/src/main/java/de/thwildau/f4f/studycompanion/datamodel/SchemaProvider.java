@@ -1,6 +1,7 @@
 package de.thwildau.f4f.studycompanion.datamodel;
 
-import android.widget.Toast;
+import android.content.SharedPreferences;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.preference.PreferenceManager;
@@ -10,8 +11,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import de.thwildau.f4f.studycompanion.R;
 import de.thwildau.f4f.studycompanion.StudyCompanion;
@@ -23,7 +27,7 @@ import de.thwildau.f4f.studycompanion.datamodel.realmobjects.Enumeration;
 import de.thwildau.f4f.studycompanion.datamodel.realmobjects.EnumerationTransition;
 import de.thwildau.f4f.studycompanion.datamodel.realmobjects.FieldSchema;
 import io.realm.Realm;
-import io.realm.RealmQuery;
+import io.realm.RealmObject;
 
 public class SchemaProvider {
     public interface DownloadProcessFinishedCallback {
@@ -57,6 +61,94 @@ public class SchemaProvider {
         }
     }
 
+    /**
+     * Immutable snapshot of all locally stored structures in parsed form.
+     * It is built from Realm on first access after a structure update, so lookups
+     * neither query Realm nor parse JSON.
+     */
+    private static class StructureCache {
+        final Map<String, JSONObject> fieldSchemas = new HashMap<>();
+        final Map<String, JSONObject> enumTransitions = new HashMap<>();
+        final Map<String, EnumMetadata> enumMetadata = new HashMap<>();
+        final Map<String, List<EnumerationElement>> enumElements = new HashMap<>();
+        final Map<String, List<String>> adtFields = new HashMap<>();
+
+        StructureCache() {
+            Realm r = Realm.getDefaultInstance();
+
+            for(FieldSchema schema : r.where(FieldSchema.class).findAll()) {
+                try {
+                    fieldSchemas.put(schema.id, new JSONObject(schema.jsonSchema));
+                } catch (JSONException e) {
+                    Log.e(LOG_TAG, "Error on parsing JSON schema for field '" + schema.id + "'.");
+                }
+            }
+
+            for(EnumerationTransition enumTransition : r.where(EnumerationTransition.class).findAll()) {
+                try {
+                    enumTransitions.put(enumTransition.enumId, new JSONObject(enumTransition.transitionJson));
+                } catch (JSONException e) {
+                    Log.e(LOG_TAG, "Error on parsing JSON transitions for enumeration '" + enumTransition.enumId + "'.");
+                }
+            }
+
+            for(Enumeration enumeration : r.where(Enumeration.class).findAll()) {
+                try {
+                    JSONObject enumElementObject = new JSONObject(enumeration.jsonSchema);
+                    enumMetadata.put(enumeration.id, new EnumMetadata(
+                            enumElementObject.optString("label"),
+                            enumElementObject.optString("helpText"),
+                            enumElementObject.optBoolean("contains_food_items")));
+                    enumElements.put(enumeration.id, Collections.unmodifiableList(parseEnumElements(enumeration.id, enumElementObject)));
+                } catch (JSONException e) {
+                    Log.e(LOG_TAG, "Error on parsing JSON schema for enumeration '" + enumeration.id + "'.");
+                }
+            }
+
+            for(ADT adt : r.where(ADT.class).findAll()) {
+                try {
+                    JSONArray fields = new JSONArray(adt.jsonSchema);
+                    List<String> fieldList = new ArrayList<>(fields.length());
+                    for(int i = 0; i < fields.length(); i++) {
+                        fieldList.add(fields.getString(i));
+                    }
+                    adtFields.put(adt.id, Collections.unmodifiableList(fieldList));
+                } catch (JSONException e) {
+                    Log.e(LOG_TAG, "Error on parsing JSON schema for ADT '" + adt.id + "'.");
+                }
+            }
+
+            r.close();
+        }
+
+        private static List<EnumerationElement> parseEnumElements(String enumID, JSONObject enumElementObject) throws JSONException {
+            JSONArray jsonIds = enumElementObject.getJSONArray("element_ids");
+            JSONArray jsonLabels = enumElementObject.getJSONArray("element_labels");
+            JSONArray jsonExplicitLabels = enumElementObject.optJSONArray("element_explicit_labels");
+
+            List<EnumerationElement> res = new ArrayList<>(jsonIds.length());
+            for(int i = 0; i < jsonIds.length(); i++) {
+                String elementId = jsonIds.getString(i);
+                String elementLabel = jsonLabels.getString(i);
+                String explicitLabel = null;
+
+                if(jsonExplicitLabels != null) {
+                    if(!jsonExplicitLabels.isNull(i)) { // explicit check for null required due to bug in JSON library: https://stackoverflow.com/q/18226288/5106474
+                        explicitLabel = jsonExplicitLabels.optString(i);
+                    }
+                }
+
+                res.add(new EnumerationElement(enumID, elementId, elementLabel, explicitLabel));
+            }
+            return res;
+        }
+    }
+
+    private static final String LOG_TAG = "SchemaProvider";
+
+    private static volatile StructureCache structureCache = null;
+    private static int structureCacheVersion = 0;
+
     private static DeviceConfig cachedDeviceConfig = null;
     private static int structureDownloadCounter = 0;
     private static boolean structureDownloadError = false;
@@ -66,11 +158,16 @@ public class SchemaProvider {
 
     private static void executeRealmTransaction(Realm.Transaction transaction) {
         Realm r = Realm.getDefaultInstance();
-        r.executeTransaction(transaction);
+        r.executeTransaction(realm -> {
+            transaction.execute(realm);
+            // questions available on each day might have changed with the field schemas
+            DayStateProvider.invalidateQuestionAvailability(realm);
+        });
         r.close();
+        invalidateStructureCache();
     }
 
-    private static boolean initStructureDownloadProcess(int numberOfStructuresToDownload) {
+    private static synchronized boolean initStructureDownloadProcess(int numberOfStructuresToDownload) {
         if(structureDownloadCounter != 0) {
             // structure download already running
             return false;
@@ -81,23 +178,28 @@ public class SchemaProvider {
     }
 
     private static void checkFinishedStructureDownload(DownloadProcessFinishedCallback processFinishedCallback, boolean error) {
-        structureDownloadCounter--;
-        if(error) {
-            structureDownloadError = true;
-        }
-        if(structureDownloadCounter > 0) {
-            // not all download request have been processed yet
-            return;
-        }
+        boolean wasStructureDownloadError;
+        boolean wasConfigUpdated;
 
-        // all download requests processed. Notify callback, if available.
+        synchronized (SchemaProvider.class) {
+            structureDownloadCounter--;
+            if (error) {
+                structureDownloadError = true;
+            }
+            if (structureDownloadCounter > 0) {
+                // not all download request have been processed yet
+                return;
+            }
+
+            // all download requests processed. Notify callback, if available.
 
-        boolean wasStructureDownloadError = structureDownloadError;
-        boolean wasConfigUpdated = configUpdated;
+            wasStructureDownloadError = structureDownloadError;
+            wasConfigUpdated = configUpdated;
 
-        structureDownloadError = false;
-        structureDownloadCounter = 0;
-        configUpdated = false;
+            structureDownloadError = false;
+            structureDownloadCounter = 0;
+            configUpdated = false;
+        }
 
         if(processFinishedCallback != null) {
             processFinishedCallback.onProcessFinished(wasStructureDownloadError, wasConfigUpdated);
@@ -108,10 +210,17 @@ public class SchemaProvider {
     /**
      * Download field schema, enum, ADT definitions and device config in JSON format from server
      * and store them in local MongoDB Realm database.
+     * Structures, which have not changed since their last download (same ETag), are neither
+     * transferred nor stored again.
      *
      * This action is done asynchronously
      */
     public static void downloadSturcturesFromServer(DownloadProcessFinishedCallback processFinishedCallback) {
+        if(BackendIO.isStructureSnapshotProvided()) {
+            downloadStructureSnapshot(processFinishedCallback);
+            return;
+        }
+
         if(!initStructureDownloadProcess(4)) {
 //            if(processFinishedCallback != null) {
 //                BackendIO.serverLog(Log.WARN, "SchemaProvider", "Schema download requested with specified callback, but downloading process is already running. ");
@@ -121,17 +230,13 @@ public class SchemaProvider {
         }
 
         // asynchronously fetch field schema definitions from server:
-        BackendIO.getRemoteDatasetAsync(BackendIO.RemoteDatasetType.SCHEMAS, new BackendIO.RemoteRequestCompletedCallback() {
+        BackendIO.getConditionalDatasetAsync(BackendIO.RemoteDatasetType.SCHEMAS, getStoredETag(BackendIO.RemoteDatasetType.SCHEMAS), new BackendIO.ConditionalRequestCompletedCallback() {
             @Override
-            public void onResponse(JSONObject response) {
+            public void onResponse(JSONObject response, String eTag) {
                 try {
-                    JSONArray schemas = response.getJSONArray("schemas");
-
-                    for(int i = 0; i < schemas.length(); i++) {
-                        JSONObject schema = schemas.getJSONObject(i);
-                        String name = schema.getString("id");
-                        storeLocalFieldSchema(name, schema.toString());
-                    }
+                    List<FieldSchema> schemas = parseFieldSchemas(response);
+                    executeRealmTransaction(r -> r.insertOrUpdate(schemas));
+                    storeETag(BackendIO.RemoteDatasetType.SCHEMAS, eTag);
                     checkFinishedStructureDownload(processFinishedCallback, false);
                 } catch (JSONException e) {
                     checkFinishedStructureDownload(processFinishedCallback, true);
@@ -140,6 +245,12 @@ public class SchemaProvider {
 
             }
 
+            @Override
+            public void onNotModified() {
+                // local version is up to date
+                checkFinishedStructureDownload(processFinishedCallback, false);
+            }
+
             @Override
             public void onError(int errorStatusCode, String errorMessage) {
                 checkFinishedStructureDownload(processFinishedCallback, true);
@@ -148,38 +259,22 @@ public class SchemaProvider {
         });
 
         // asynchronously fetch enum definitions from server:
-        BackendIO.getRemoteDatasetAsync(BackendIO.RemoteDatasetType.ENUMS, new BackendIO.RemoteRequestCompletedCallback() {
+        BackendIO.getConditionalDatasetAsync(BackendIO.RemoteDatasetType.ENUMS, getStoredETag(BackendIO.RemoteDatasetType.ENUMS), new BackendIO.ConditionalRequestCompletedCallback() {
             @Override
-            public void onResponse(JSONObject response) {
+            public void onResponse(JSONObject response, String eTag) {
                 try {
-
-                    // Process enums
-                    JSONArray enums = response.getJSONArray("enums");
-
-                    if(enumImageProvider == null) {
-                        enumImageProvider = new EnumImageProvider(StudyCompanion.getAppContext());
-                    }
+                    List<Enumeration> enums = parseEnums(response);
+                    List<EnumerationTransition> enumTransitions = parseEnumTransitions(response);
 
                     // download new enum images and store in app cache, if necessary
-                    enumImageProvider.processNewEnumArray(enums);
-
-                    for(int i = 0; i < enums.length(); i++) {
-                        JSONObject enumeration = enums.getJSONObject(i);
-                        String name = enumeration.getString("id");
-                        String jsonEnumElementsString = enumeration.toString();
-                        storeLocalEnum(name, jsonEnumElementsString);
-                    }
+                    processEnumImages(response);
 
-                    // Process enum transitions:
-                    JSONObject enumTransitions = response.getJSONObject("enum_transitions");
-
-                    Iterator<String> keys = enumTransitions.keys();
-                    while(keys.hasNext()) {
-                        String enumId = keys.next();
-                        String transitionJSON = enumTransitions.getJSONObject(enumId).toString();
-                        storeLocalEnumTransition(enumId, transitionJSON);
-                    }
+                    executeRealmTransaction(r -> {
+                        r.insertOrUpdate(enums);
+                        r.insertOrUpdate(enumTransitions);
+                    });
 
+                    storeETag(BackendIO.RemoteDatasetType.ENUMS, eTag);
                     checkFinishedStructureDownload(processFinishedCallback, false);
                 } catch (JSONException e) {
                     checkFinishedStructureDownload(processFinishedCallback, true);
@@ -187,6 +282,12 @@ public class SchemaProvider {
                 }
             }
 
+            @Override
+            public void onNotModified() {
+                // local version is up to date
+                checkFinishedStructureDownload(processFinishedCallback, false);
+            }
+
             @Override
             public void onError(int errorStatusCode, String errorMessage) {
                 checkFinishedStructureDownload(processFinishedCallback, true);
@@ -195,18 +296,13 @@ public class SchemaProvider {
         });
 
         // asynchronously fetch ADT definitions from server:
-        BackendIO.getRemoteDatasetAsync(BackendIO.RemoteDatasetType.ADTS, new BackendIO.RemoteRequestCompletedCallback() {
+        BackendIO.getConditionalDatasetAsync(BackendIO.RemoteDatasetType.ADTS, getStoredETag(BackendIO.RemoteDatasetType.ADTS), new BackendIO.ConditionalRequestCompletedCallback() {
             @Override
-            public void onResponse(JSONObject response) {
+            public void onResponse(JSONObject response, String eTag) {
                 try {
-
-                    Iterator<String> adtIds = response.keys();
-
-                    while(adtIds.hasNext()) {
-                        String adtId = adtIds.next();
-                        JSONArray adtFieldArray = response.getJSONArray(adtId);
-                        storeLocalADT(adtId, adtFieldArray.toString());
-                    }
+                    List<ADT> adts = parseADTs(response);
+                    executeRealmTransaction(r -> r.insertOrUpdate(adts));
+                    storeETag(BackendIO.RemoteDatasetType.ADTS, eTag);
                     checkFinishedStructureDownload(processFinishedCallback, false);
                 } catch (JSONException e) {
                     checkFinishedStructureDownload(processFinishedCallback, true);
@@ -214,6 +310,12 @@ public class SchemaProvider {
                 }
             }
 
+            @Override
+            public void onNotModified() {
+                // local version is up to date
+                checkFinishedStructureDownload(processFinishedCallback, false);
+            }
+
             @Override
             public void onError(int errorStatusCode, String errorMessage) {
                 checkFinishedStructureDownload(processFinishedCallback, true);
@@ -222,11 +324,12 @@ public class SchemaProvider {
         });
 
         // asynchronously fetch Device Config definition from server:
-        BackendIO.getRemoteDatasetAsync(BackendIO.RemoteDatasetType.CONFIG, new BackendIO.RemoteRequestCompletedCallback() {
+        BackendIO.getConditionalDatasetAsync(BackendIO.RemoteDatasetType.CONFIG, getStoredETag(BackendIO.RemoteDatasetType.CONFIG), new BackendIO.ConditionalRequestCompletedCallback() {
             @Override
-            public void onResponse(JSONObject response) {
+            public void onResponse(JSONObject response, String eTag) {
                 try {
                     configUpdated = storeLocalDeviceConfig(response);
+                    storeETag(BackendIO.RemoteDatasetType.CONFIG, eTag);
                     checkFinishedStructureDownload(processFinishedCallback, false);
                 } catch (JSONException e) {
                     checkFinishedStructureDownload(processFinishedCallback, true);
@@ -234,6 +337,12 @@ public class SchemaProvider {
                 }
             }
 
+            @Override
+            public void onNotModified() {
+                // local version is up to date
+                checkFinishedStructureDownload(processFinishedCallback, false);
+            }
+
             @Override
             public void onError(int errorStatusCode, String errorMessage) {
                 checkFinishedStructureDownload(processFinishedCallback, true);
@@ -242,45 +351,199 @@ public class SchemaProvider {
         });
     }
 
+    /**
+     * @return The entity tag of the locally stored version of the given structure,
+     * or null if the structure has to be downloaded unconditionally.
+     */
+    private static String getStoredETag(BackendIO.RemoteDatasetType structureType) {
+        SharedPreferences userPrefs = StudyCompanion.getUserPreferences();
+        if(userPrefs == null || !hasLocalStructure(structureType)) {
+            // Without local data a "304 Not Modified" response would leave the app without any structure
+            return null;
+        }
+
+        try {
+            JSONObject eTags = new JSONObject(userPrefs.getString(StudyCompanion.getAppContext().getString(R.string.structureETags), "{}"));
+            return eTags.optString(structureType.getEndpoint(), null);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static void storeETag(BackendIO.RemoteDatasetType structureType, String eTag) {
+        SharedPreferences userPrefs = StudyCompanion.getUserPreferences();
+        if(userPrefs == null) {
+            return;
+        }
+
+        String prefName = StudyCompanion.getAppContext().getString(R.string.structureETags);
+        try {
+            JSONObject eTags = new JSONObject(userPrefs.getString(prefName, "{}"));
+            if(eTag == null) {
+                eTags.remove(structureType.getEndpoint());
+            } else {
+                eTags.put(structureType.getEndpoint(), eTag);
+            }
+            userPrefs.edit().putString(prefName, eTags.toString()).apply();
+        } catch (JSONException e) {
+            userPrefs.edit().remove(prefName).apply();
+        }
+    }
+
+    private static boolean hasLocalStructure(BackendIO.RemoteDatasetType structureType) {
+        if(structureType == BackendIO.RemoteDatasetType.CONFIG) {
+            String prefName = StudyCompanion.getAppContext().getString(R.string.deviceConfig);
+            return !StudyCompanion.getGlobalPreferences().getString(prefName, "").isEmpty();
+        }
+
+        Class<? extends RealmObject> structureClass;
+        switch (structureType) {
+            case SCHEMAS:
+                structureClass = FieldSchema.class;
+                break;
+            case ENUMS:
+                structureClass = Enumeration.class;
+                break;
+            case ADTS:
+                structureClass = ADT.class;
+                break;
+            case STRUCTURE:
+                return hasLocalStructure(BackendIO.RemoteDatasetType.SCHEMAS)
+                        && hasLocalStructure(BackendIO.RemoteDatasetType.ENUMS)
+                        && hasLocalStructure(BackendIO.RemoteDatasetType.CONFIG);
+            default:
+                return false;
+        }
+
+        Realm r = Realm.getDefaultInstance();
+        boolean res = r.where(structureClass).count() > 0;
+        r.close();
+        return res;
+    }
+
     private static void handleNetworkError(int errorStatusCode, String errorMessage) {
         //Toast.makeText(StudyCompanion.getAppContext(), "Error loading data structure information from server ("+errorStatusCode+": "+errorMessage+").", Toast.LENGTH_LONG).show();
         //TODO: Do something / Inform the user in an understandable way, if even after multiple attempts the schemas can not be downloaded.
     }
 
-    private static void storeLocalFieldSchema(String name, String jsonSchemaString) {
-        executeRealmTransaction(r -> {
-            FieldSchema schema = new FieldSchema();
-            schema.id = name;
-            schema.jsonSchema = jsonSchemaString;
-            r.insertOrUpdate(schema);
+    /**
+     * Download all structures at once as a single snapshot and store them in one Realm transaction,
+     * so the local structures are never left in a partially updated state.
+     * The snapshot is identified by a content hash, which is sent as ETag on the next download.
+     */
+    private static void downloadStructureSnapshot(DownloadProcessFinishedCallback processFinishedCallback) {
+        if(!initStructureDownloadProcess(1)) {
+            return;
+        }
+
+        BackendIO.getConditionalDatasetAsync(BackendIO.RemoteDatasetType.STRUCTURE, getStoredETag(BackendIO.RemoteDatasetType.STRUCTURE), new BackendIO.ConditionalRequestCompletedCallback() {
+            @Override
+            public void onResponse(JSONObject response, String eTag) {
+                try {
+                    JSONObject enumsResponse = response.getJSONObject("enums");
+                    List<FieldSchema> schemas = parseFieldSchemas(response.getJSONObject("schemas"));
+                    List<Enumeration> enums = parseEnums(enumsResponse);
+                    List<EnumerationTransition> enumTransitions = parseEnumTransitions(enumsResponse);
+                    List<ADT> adts = parseADTs(response.getJSONObject("adts"));
+                    JSONObject deviceConfig = response.getJSONObject("config");
+                    String hash = response.optString("hash", eTag);
+
+                    executeRealmTransaction(r -> {
+                        r.insertOrUpdate(schemas);
+                        r.insertOrUpdate(enums);
+                        r.insertOrUpdate(enumTransitions);
+                        r.insertOrUpdate(adts);
+                    });
+                    configUpdated = storeLocalDeviceConfig(deviceConfig);
+
+                    // download new enum images and store in app cache, if necessary
+                    processEnumImages(enumsResponse);
+
+                    storeETag(BackendIO.RemoteDatasetType.STRUCTURE, hash);
+                    checkFinishedStructureDownload(processFinishedCallback, false);
+                } catch (JSONException e) {
+                    checkFinishedStructureDownload(processFinishedCallback, true);
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onNotModified() {
+                // local version is up to date
+                checkFinishedStructureDownload(processFinishedCallback, false);
+            }
+
+            @Override
+            public void onError(int errorStatusCode, String errorMessage) {
+                checkFinishedStructureDownload(processFinishedCallback, true);
+                handleNetworkError(errorStatusCode, errorMessage);
+            }
         });
     }
 
-    private static void storeLocalEnum(String name, String jsonEnumElementsString) {
-        executeRealmTransaction(r -> {
+    private static List<FieldSchema> parseFieldSchemas(JSONObject schemasResponse) throws JSONException {
+        JSONArray schemas = schemasResponse.getJSONArray("schemas");
+        List<FieldSchema> res = new ArrayList<>(schemas.length());
+
+        for(int i = 0; i < schemas.length(); i++) {
+            JSONObject schemaJson = schemas.getJSONObject(i);
+            FieldSchema schema = new FieldSchema();
+            schema.id = schemaJson.getString("id");
+            schema.jsonSchema = schemaJson.toString();
+            res.add(schema);
+        }
+        return res;
+    }
+
+    private static List<Enumeration> parseEnums(JSONObject enumsResponse) throws JSONException {
+        JSONArray enums = enumsResponse.getJSONArray("enums");
+        List<Enumeration> res = new ArrayList<>(enums.length());
+
+        for(int i = 0; i < enums.length(); i++) {
+            JSONObject enumJson = enums.getJSONObject(i);
             Enumeration enumeration = new Enumeration();
-            enumeration.id = name;
-            enumeration.jsonSchema = jsonEnumElementsString;
-            r.insertOrUpdate(enumeration);
-        });
+            enumeration.id = enumJson.getString("id");
+            enumeration.jsonSchema = enumJson.toString();
+            res.add(enumeration);
+        }
+        return res;
     }
 
-    private static void storeLocalEnumTransition(String enumId, String jsonEnumTransition) {
-        executeRealmTransaction(r -> {
+    private static List<EnumerationTransition> parseEnumTransitions(JSONObject enumsResponse) throws JSONException {
+        JSONObject enumTransitions = enumsResponse.getJSONObject("enum_transitions");
+        List<EnumerationTransition> res = new ArrayList<>(enumTransitions.length());
+
+        Iterator<String> keys = enumTransitions.keys();
+        while(keys.hasNext()) {
+            String enumId = keys.next();
             EnumerationTransition enumTransition = new EnumerationTransition();
             enumTransition.enumId = enumId;
-            enumTransition.transitionJson = jsonEnumTransition;
-            r.insertOrUpdate(enumTransition);
-        });
+            enumTransition.transitionJson = enumTransitions.getJSONObject(enumId).toString();
+            res.add(enumTransition);
+        }
+        return res;
     }
 
-    private static void storeLocalADT(String name, String jsonADTFieldsString) {
-        executeRealmTransaction(r -> {
+    private static List<ADT> parseADTs(JSONObject adtsResponse) throws JSONException {
+        List<ADT> res = new ArrayList<>(adtsResponse.length());
+
+        Iterator<String> adtIds = adtsResponse.keys();
+        while(adtIds.hasNext()) {
+            String adtId = adtIds.next();
             ADT adt = new ADT();
-            adt.id = name;
-            adt.jsonSchema = jsonADTFieldsString;
-            r.insertOrUpdate(adt);
-        });
+            adt.id = adtId;
+            adt.jsonSchema = adtsResponse.getJSONArray(adtId).toString();
+            res.add(adt);
+        }
+        return res;
+    }
+
+    private static void processEnumImages(JSONObject enumsResponse) throws JSONException {
+        if(enumImageProvider == null) {
+            enumImageProvider = new EnumImageProvider(StudyCompanion.getAppContext());
+        }
+
+        enumImageProvider.processNewEnumArray(enumsResponse.getJSONArray("enums"));
     }
 
     /**
@@ -378,135 +641,62 @@ public class SchemaProvider {
         return false;
     }
 
+    /**
+     * @return The parsed schema of the given field, or null if not available.
+     * The returned object is shared by all callers and must not be modified.
+     */
     public static JSONObject getSchemaForField(String id) {
-        Realm r = Realm.getDefaultInstance();
-        RealmQuery<FieldSchema> schemaQuery = r.where(FieldSchema.class).equalTo("id", id);
-        FieldSchema schema = schemaQuery.findFirst();
-        JSONObject res = null;
-
-        if(schema != null) {
-            try {
-                res = new JSONObject(schema.jsonSchema);
-            } catch (JSONException e) {
-                Toast.makeText(StudyCompanion.getAppContext(), "Error on parsing JSON schema for field '"+id+"'.", Toast.LENGTH_LONG).show();
-                r.close();
-                return null;
-            }
-        } else {
-            r.close();
-            return null;
-        }
-        r.close();
-        return res;
+        return getStructureCache().fieldSchemas.get(id);
     }
 
+    /**
+     * @return The parsed transitions of the given enum, or null if not available.
+     * The returned object is shared by all callers and must not be modified.
+     */
     public static JSONObject getEnumTransitions(String enumID) {
-        Realm r = Realm.getDefaultInstance();
-        RealmQuery<EnumerationTransition> schemaQuery = r.where(EnumerationTransition.class).equalTo("enumId", enumID);
-        EnumerationTransition enumerationTransition = schemaQuery.findFirst();
-
-        if(enumerationTransition == null) {
-            r.close();
-            return null;
-        }
-
-        try {
-            JSONObject res =new JSONObject(enumerationTransition.transitionJson);
-            r.close();
-            return  res;
-        } catch (JSONException e) {
-            r.close();
-            return null;
-        }
+        return getStructureCache().enumTransitions.get(enumID);
     }
 
     public static EnumMetadata getEnumMetadata(String enumID) {
-        Realm r = Realm.getDefaultInstance();
-        RealmQuery<Enumeration> schemaQuery = r.where(Enumeration.class).equalTo("id", enumID);
-        Enumeration enumeration = schemaQuery.findFirst();
-
-        String label = null;
-        String helpText = null;
-        boolean containsFoodItems = false;
-
-        try {
-            JSONObject enumElementObject = new JSONObject(enumeration.jsonSchema);
-            label = enumElementObject.optString("label");
-            helpText = enumElementObject.optString("helpText");
-            containsFoodItems = enumElementObject.optBoolean("contains_food_items");
-        } catch (Throwable e) {
-            // ignore
-        }
-
-        r.close();
-        return new EnumMetadata(label, helpText, containsFoodItems);
+        EnumMetadata res = getStructureCache().enumMetadata.get(enumID);
+        return res != null ? res : new EnumMetadata(null, null, false);
     }
 
     public static List<EnumerationElement> getEnumElements(String enumID) {
-        Realm r = Realm.getDefaultInstance();
-        RealmQuery<Enumeration> schemaQuery = r.where(Enumeration.class).equalTo("id", enumID);
-        Enumeration enumeration = schemaQuery.findFirst();
-
-        List<EnumerationElement> res = new ArrayList<>();
+        List<EnumerationElement> res = getStructureCache().enumElements.get(enumID);
+        return res != null ? new ArrayList<>(res) : null;
+    }
 
-        if(enumeration != null) {
-            try {
-                JSONObject enumElementObject = new JSONObject(enumeration.jsonSchema);
+    public static List<String> getADTFields(String adtId) {
+        List<String> res = getStructureCache().adtFields.get(adtId);
+        return res != null ? new ArrayList<>(res) : null;
+    }
 
-                JSONArray jsonIds = enumElementObject.getJSONArray("element_ids");
-                JSONArray jsonLabels = enumElementObject.getJSONArray("element_labels");
-                JSONArray jsonExplicitLabels = enumElementObject.optJSONArray("element_explicit_labels");
+    private static StructureCache getStructureCache() {
+        StructureCache cache = structureCache;
+        if(cache != null) {
+            return cache;
+        }
 
-                for(int i = 0; i < jsonIds.length(); i++) {
-                    String elementId = jsonIds.getString(i);
-                    String elementLabel = jsonLabels.getString(i);
-                    String explicitLabel = null;
+        int version;
+        synchronized (SchemaProvider.class) {
+            version = structureCacheVersion;
+        }
 
-                    if(jsonExplicitLabels != null) {
-                        if(!jsonExplicitLabels.isNull(i)) { // explicit check for null required due to bug in JSON library: https://stackoverflow.com/q/18226288/5106474
-                            explicitLabel = jsonExplicitLabels.optString(i);
-                        }
-                    }
+        cache = new StructureCache();
 
-                    res.add(new EnumerationElement(enumID, elementId, elementLabel, explicitLabel));
-                }
-                r.close();
-                return res;
-            } catch (JSONException e) {
-                Toast.makeText(StudyCompanion.getAppContext(), "Error on parsing JSON schema for enumeration '"+enumID+"'.", Toast.LENGTH_LONG).show();
-                r.close();
-                return null;
+        synchronized (SchemaProvider.class) {
+            if(version == structureCacheVersion) {
+                // structures have not been updated while building the cache
+                structureCache = cache;
             }
-        } else {
-            r.close();
-            return null;
         }
+        return cache;
     }
 
-    public static List<String> getADTFields(String adtId) {
-        Realm r = Realm.getDefaultInstance();
-        RealmQuery<ADT> schemaQuery = r.where(ADT.class).equalTo("id", adtId);
-        ADT schema = schemaQuery.findFirst();
-
-        List<String> res = new ArrayList<>();
-
-        if(schema != null) {
-            try {
-                JSONArray fields = new JSONArray(schema.jsonSchema);
-                for(int i = 0; i < fields.length(); i++) {
-                    res.add(fields.getString(i));
-                }
-                r.close();
-                return res;
-            } catch (JSONException e) {
-                Toast.makeText(StudyCompanion.getAppContext(), "Error on parsing JSON schema for ADT '"+adtId+"'.", Toast.LENGTH_LONG).show();
-                r.close();
-                return null;
-            }
-        } else {
-            r.close();
-            return null;
-        }
+    private static synchronized void invalidateStructureCache() {
+        structureCacheVersion++;
+        structureCache = null;
     }
 
     /**
@@ -0,0 +1,273 @@
+package de.thwildau.f4f.studycompanion.datamodel;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Lossless compressed encoding of the sample columns of a {@link de.thwildau.f4f.studycompanion.datamodel.realmobjects.SensorChunk}
+ * for local storage. Sensor samples arrive about once per second with monotonically increasing timestamps
+ * and slowly changing values, so each column is encoded by the differences between consecutive samples:
+ * <pre>
+ *   timestamps:      varint count, first value, first delta, then delta-of-deltas, all as zig-zag varints
+ *   integers:        varint count, first value and following deltas as zig-zag varints
+ *   run lengths:     varint count, (zig-zag varint value, varint run length) per run
+ *   floats:          encoding byte, then
+ *                    0x01 fixed point: varint count, scale byte s, then like integers for the values multiplied by 10^s
+ *                    0x02 XOR:         varint count, varint of the XOR of the IEEE 754 bits of each value with the previous one
+ * </pre>
+ * Fixed point is used for values with up to MAX_FIXED_POINT_SCALE decimal places (e.g. temperatures),
+ * if all values survive the round trip exactly. Otherwise, the XOR encoding is used, which still benefits
+ * from the equal sign, exponent and leading mantissa bits of similar values.
+ * <p>
+ * Decoding a corrupt column throws an IllegalArgumentException.
+ */
+public final class SensorColumnCodec {
+
+    private static final int FLOAT_FIXED_POINT = 0x01;
+    private static final int FLOAT_XOR = 0x02;
+
+    private static final int MAX_FIXED_POINT_SCALE = 4;
+
+    private SensorColumnCodec() { }
+
+    public static byte[] encodeTimestamps(long[] values) {
+        Writer writer = new Writer(values.length + 2);
+        writer.writeVarint(values.length);
+        long previous = 0;
+        long previousDelta = 0;
+        for (int i = 0; i < values.length; i++) {
+            long delta = values[i] - previous;
+            writer.writeSignedVarint(i == 0 ? values[i] : delta - previousDelta);
+            previousDelta = i == 0 ? 0 : delta;
+            previous = values[i];
+        }
+        return writer.toByteArray();
+    }
+
+    public static long[] decodeTimestamps(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        long[] values = new long[reader.readCount()];
+        long previous = 0;
+        long previousDelta = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0) {
+                values[i] = reader.readSignedVarint();
+            } else {
+                long delta = previousDelta + reader.readSignedVarint();
+                values[i] = previous + delta;
+                previousDelta = delta;
+            }
+            previous = values[i];
+        }
+        return values;
+    }
+
+    public static byte[] encodeInts(int[] values) {
+        Writer writer = new Writer(values.length + 2);
+        writer.writeVarint(values.length);
+        writeDeltas(writer, values);
+        return writer.toByteArray();
+    }
+
+    public static int[] decodeInts(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        int[] values = new int[reader.readCount()];
+        readDeltas(reader, values);
+        return values;
+    }
+
+    public static byte[] encodeRunLengths(int[] values) {
+        Writer writer = new Writer(8);
+        writer.writeVarint(values.length);
+        int i = 0;
+        while (i < values.length) {
+            int runLength = 1;
+            while (i + runLength < values.length && values[i + runLength] == values[i]) {
+                runLength++;
+            }
+            writer.writeSignedVarint(values[i]);
+            writer.writeVarint(runLength);
+            i += runLength;
+        }
+        return writer.toByteArray();
+    }
+
+    public static int[] decodeRunLengths(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        // A run may cover many values, so the count is not limited by the size of the column
+        int[] values = new int[reader.readCount(Integer.MAX_VALUE)];
+        int i = 0;
+        while (i < values.length) {
+            int value = (int) reader.readSignedVarint();
+            long runLength = reader.readVarint();
+            if (runLength <= 0 || runLength > values.length - i) {
+                throw new IllegalArgumentException("Invalid run length " + runLength + " at value " + i + " of " + values.length + ".");
+            }
+            for (int end = i + (int) runLength; i < end; i++) {
+                values[i] = value;
+            }
+        }
+        return values;
+    }
+
+    public static byte[] encodeFloats(float[] values) {
+        int scale = fixedPointScale(values);
+        Writer writer = new Writer(values.length * 2 + 3);
+
+        if (scale >= 0) {
+            writer.write(FLOAT_FIXED_POINT);
+            writer.writeVarint(values.length);
+            writer.write(scale);
+            int[] fixedPointValues = new int[values.length];
+            float factor = (float) Math.pow(10, scale);
+            for (int i = 0; i < values.length; i++) {
+                fixedPointValues[i] = Math.round(values[i] * factor);
+            }
+            writeDeltas(writer, fixedPointValues);
+        } else {
+            writer.write(FLOAT_XOR);
+            writer.writeVarint(values.length);
+            int previousBits = 0;
+            for (float value : values) {
+                int bits = Float.floatToRawIntBits(value);
+                writer.writeVarint((bits ^ previousBits) & 0xFFFFFFFFL);
+                previousBits = bits;
+            }
+        }
+
+        return writer.toByteArray();
+    }
+
+    public static float[] decodeFloats(byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        int encoding = reader.read();
+        float[] values = new float[reader.readCount()];
+
+        if (encoding == FLOAT_FIXED_POINT) {
+            int scale = reader.read();
+            if (scale > MAX_FIXED_POINT_SCALE) {
+                throw new IllegalArgumentException("Invalid fixed point scale: " + scale);
+            }
+            float factor = (float) Math.pow(10, scale);
+            int[] fixedPointValues = new int[values.length];
+            readDeltas(reader, fixedPointValues);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = fixedPointValues[i] / factor;
+            }
+        } else if (encoding == FLOAT_XOR) {
+            int previousBits = 0;
+            for (int i = 0; i < values.length; i++) {
+                previousBits ^= (int) reader.readVarint();
+                values[i] = Float.intBitsToFloat(previousBits);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown float column encoding: " + encoding);
+        }
+
+        return values;
+    }
+
+    /**
+     * @return The smallest number of decimal places, with which all values can be stored as fixed point numbers
+     * and restored exactly, or -1 if there is none up to MAX_FIXED_POINT_SCALE.
+     */
+    private static int fixedPointScale(float[] values) {
+        for (int scale = 0; scale <= MAX_FIXED_POINT_SCALE; scale++) {
+            float factor = (float) Math.pow(10, scale);
+            boolean exact = true;
+            for (int i = 0; i < values.length && exact; i++) {
+                float scaled = values[i] * factor;
+                exact = Math.abs(scaled) < Integer.MAX_VALUE / 2
+                        && Float.floatToRawIntBits(Math.round(scaled) / factor) == Float.floatToRawIntBits(values[i]);
+            }
+            if (exact) {
+                return scale;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeDeltas(Writer writer, int[] values) {
+        long previous = 0;
+        for (int value : values) {
+            writer.writeSignedVarint(value - previous);
+            previous = value;
+        }
+    }
+
+    private static void readDeltas(Reader reader, int[] values) {
+        long previous = 0;
+        for (int i = 0; i < values.length; i++) {
+            previous += reader.readSignedVarint();
+            values[i] = (int) previous;
+        }
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        Writer(int initialSize) {
+            super(initialSize);
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeSignedVarint(long value) {
+            writeVarint((value << 1) ^ (value >> 63)); // zig-zag
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of column.");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        /**
+         * Reads the number of values of a column, each of which takes at least one more byte.
+         */
+        int readCount() {
+            return readCount(bytes.length - position - 1);
+        }
+
+        int readCount(int maxCount) {
+            long count = readVarint();
+            if (count < 0 || count > maxCount) {
+                throw new IllegalArgumentException("Invalid value count " + count + " for a column of " + bytes.length + " bytes.");
+            }
+            return (int) count;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) {
+                    throw new IllegalArgumentException("Invalid varint.");
+                }
+                b = read();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1); // zig-zag
+        }
+    }
+}
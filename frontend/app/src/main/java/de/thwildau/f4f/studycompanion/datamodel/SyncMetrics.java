@@ -0,0 +1,166 @@
+package de.thwildau.f4f.studycompanion.datamodel;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.thwildau.f4f.studycompanion.R;
+import de.thwildau.f4f.studycompanion.StudyCompanion;
+import de.thwildau.f4f.studycompanion.backend.RequestLane;
+
+/**
+ * Metrics of a single sync process: wall time and number of visits per {@link DataManager.SyncProcessState},
+ * transferred bytes, dataset counts, as well as the time spent in Realm and in JSON (de)serialization.
+ * <p>
+ * The time of a state lasts until the state machine moves on, so states waiting for a response include
+ * the network time. Realm and JSON times are measured on all threads involved in the sync (request threads,
+ * upload pipeline) and may therefore overlap with each other's network time. Downloaded datasets are parsed
+ * while they are received, so their parse time is part of the download states, not of the JSON time.
+ * <p>
+ * When the sync process has terminated, the metrics are condensed into a compact JSON summary, which is kept
+ * in a ring buffer of the last MAX_HISTORY_ENTRIES summaries.
+ */
+class SyncMetrics {
+    private static final String LOG_TAG = "SyncMetrics";
+    private static final int MAX_HISTORY_ENTRIES = 20;
+
+    private static final DataManager.SyncProcessState[] STATES = DataManager.SyncProcessState.values();
+
+    private final long startTime = SystemClock.elapsedRealtime();
+    private final long startBytesSent = RequestLane.BULK_SYNC.getStreamedBytesSent();
+    private final long startBytesReceived = RequestLane.BULK_SYNC.getStreamedBytesReceived();
+
+    // Only accessed by the state machine thread
+    private final long[] stateTimeMs = new long[STATES.length];
+    private final int[] stateVisits = new int[STATES.length];
+    private DataManager.SyncProcessState currentState = null;
+    private long currentStateStartTime = 0;
+
+    // Accessed by all threads involved in the sync
+    private final AtomicLong realmTimeNs = new AtomicLong();
+    private final AtomicLong jsonTimeNs = new AtomicLong();
+    private final AtomicLong uploadSegments = new AtomicLong();
+    private final AtomicLong uploadRetries = new AtomicLong();
+
+    /**
+     * Called by the state machine thread whenever it enters a state.
+     */
+    void enterState(DataManager.SyncProcessState state) {
+        long now = SystemClock.elapsedRealtime();
+        if (currentState != null) {
+            stateTimeMs[currentState.ordinal()] += now - currentStateStartTime;
+        }
+        currentState = state;
+        currentStateStartTime = now;
+        stateVisits[state.ordinal()]++;
+    }
+
+    void addRealmTime(long startNanos) {
+        realmTimeNs.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    void addJsonTime(long startNanos) {
+        jsonTimeNs.addAndGet(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Moves time measured by addRealmTime() to the JSON time, for JSON processing nested in a Realm transaction.
+     */
+    void moveRealmTimeToJson(long nanos) {
+        realmTimeNs.addAndGet(-nanos);
+        jsonTimeNs.addAndGet(nanos);
+    }
+
+    void countUploadSegment() {
+        uploadSegments.incrementAndGet();
+    }
+
+    void countUploadRetry() {
+        uploadRetries.incrementAndGet();
+    }
+
+    /**
+     * Terminates the measurement and adds the summary to the history.
+     *
+     * @return The summary of the sync process.
+     */
+    JSONObject finish(String syncId, int numUploaded, int numDownloaded) {
+        if (currentState != null) {
+            stateTimeMs[currentState.ordinal()] += SystemClock.elapsedRealtime() - currentStateStartTime;
+        }
+
+        JSONObject summary = new JSONObject();
+        try {
+            summary.put("time", System.currentTimeMillis());
+            summary.put("sync_id", syncId);
+            summary.put("result", currentState != null ? currentState.name() : null);
+            summary.put("wall_ms", SystemClock.elapsedRealtime() - startTime);
+            summary.put("uploaded", numUploaded);
+            summary.put("downloaded", numDownloaded);
+            summary.put("segments", uploadSegments.get());
+            summary.put("retries", uploadRetries.get());
+            summary.put("bytes_sent", RequestLane.BULK_SYNC.getStreamedBytesSent() - startBytesSent);
+            summary.put("bytes_received", RequestLane.BULK_SYNC.getStreamedBytesReceived() - startBytesReceived);
+            summary.put("realm_ms", realmTimeNs.get() / 1000000);
+            summary.put("json_ms", jsonTimeNs.get() / 1000000);
+
+            // visited states only, as [visits, ms]
+            JSONObject states = new JSONObject();
+            for (DataManager.SyncProcessState state : STATES) {
+                int i = state.ordinal();
+                if (stateVisits[i] > 0) {
+                    states.put(state.name(), new JSONArray().put(stateVisits[i]).put(stateTimeMs[i]));
+                }
+            }
+            summary.put("states", states);
+        } catch (JSONException e) {
+            e.printStackTrace(); // shouldn't happen
+        }
+
+        addToHistory(summary);
+        return summary;
+    }
+
+    private static void addToHistory(JSONObject summary) {
+        SharedPreferences prefs = StudyCompanion.getGlobalPreferences();
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncMetricsHistory);
+
+        synchronized (SyncMetrics.class) {
+            List<JSONObject> history = getHistory();
+            history.add(summary);
+
+            JSONArray historyJson = new JSONArray();
+            for (int i = Math.max(0, history.size() - MAX_HISTORY_ENTRIES); i < history.size(); i++) {
+                historyJson.put(history.get(i));
+            }
+            prefs.edit().putString(prefName, historyJson.toString()).apply();
+        }
+    }
+
+    /**
+     * @return Summaries of the most recent sync processes, oldest first.
+     */
+    static synchronized List<JSONObject> getHistory() {
+        String prefName = StudyCompanion.getAppContext().getString(R.string.syncMetricsHistory);
+        String historyStr = StudyCompanion.getGlobalPreferences().getString(prefName, "[]");
+
+        List<JSONObject> history = new ArrayList<>();
+        try {
+            JSONArray historyJson = new JSONArray(historyStr);
+            for (int i = 0; i < historyJson.length(); i++) {
+                history.add(historyJson.getJSONObject(i));
+            }
+        } catch (JSONException e) {
+            Log.w(LOG_TAG, "Could not read sync metrics history: " + e);
+        }
+        return history;
+    }
+}
@@ -0,0 +1,225 @@
+package de.thwildau.f4f.studycompanion.datamodel;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import de.thwildau.f4f.studycompanion.backend.BackendIO;
+import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SyncableData;
+import io.realm.RealmQuery;
+import io.realm.Sort;
+
+/**
+ * Determines the days, for which the datasets stored locally differ from the ones on the server,
+ * by comparing hashes of date ranges (a two-level hash tree of months and days).
+ * This allows a freshly logged in user to only download the differing days instead of all data,
+ * if the local database still holds most of it.
+ * <p>
+ * Datasets are assigned to the UTC day of their creation time. The hash of a day is the hex SHA-256
+ * of the lines "remote ID|modification time in epoch seconds\n" of its datasets, sorted by remote ID.
+ * The hash of a month is the hex SHA-256 of the lines "day|day hash\n" of its days, sorted by day.
+ * <p>
+ * The server provides its hashes through GET /sync/{sync_id}/ranges with the header fields "datatype" and
+ * "granularity" ("month" or "day", the latter restricted to the comma separated "months"), responding
+ * with {"ranges": {range: hash}}. Whether the server supports it is advertised in its /info response.
+ */
+class SyncRangeReconciler {
+    private static final String LOG_TAG = "SyncRangeReconciler";
+
+    // If more days differ, it is cheaper to simply download all datasets
+    static final int MAX_DIFFERING_DAYS = 200;
+
+    interface Callback {
+        /**
+         * @param differingDays Days ("yyyy-MM-dd"), for which the datasets on the server differ from the local ones,
+         *                      or null, if the ranges could not be reconciled and all datasets need to be downloaded.
+         */
+        void onReconciled(@Nullable List<String> differingDays);
+    }
+
+    private final String syncId;
+    private final DataType dataType;
+    private final Map<String, String> localDayHashes;
+    private final Map<String, String> localMonthHashes;
+
+    /**
+     * Hashes the local datasets of the given type. Needs to be called on a thread with a Realm instance.
+     */
+    SyncRangeReconciler(String syncId, DataType dataType, RealmQuery<SyncableData> userQuery) {
+        this.syncId = syncId;
+        this.dataType = dataType;
+        localDayHashes = computeDayHashes(userQuery
+                .equalTo("dataTypeStr", dataType.toString())
+                .isNotNull("remoteId")
+                .equalTo("markedForDeletion", false)
+                .sort("remoteId", Sort.ASCENDING));
+        localMonthHashes = computeMonthHashes(localDayHashes);
+    }
+
+    /**
+     * Compares the local hashes with the server's ones. The callback is invoked on the main thread.
+     */
+    void reconcile(Callback callback) {
+        requestRanges("month", null, (serverMonthHashes) -> {
+            if (serverMonthHashes == null) {
+                callback.onReconciled(null);
+                return;
+            }
+
+            List<String> differingMonths = getDifferingRanges(serverMonthHashes, localMonthHashes);
+            Log.d(LOG_TAG, differingMonths.size() + " of " + serverMonthHashes.size() + " months of " + dataType + " differ.");
+            if (differingMonths.isEmpty()) {
+                callback.onReconciled(differingMonths);
+                return;
+            }
+
+            requestRanges("day", TextUtils.join(",", differingMonths), (serverDayHashes) -> {
+                if (serverDayHashes == null) {
+                    callback.onReconciled(null);
+                    return;
+                }
+
+                List<String> differingDays = getDifferingRanges(serverDayHashes, localDayHashes);
+                Log.d(LOG_TAG, differingDays.size() + " days of " + dataType + " differ.");
+                callback.onReconciled(differingDays.size() > MAX_DIFFERING_DAYS ? null : differingDays);
+            });
+        });
+    }
+
+    private interface RangesCallback {
+        void onRanges(@Nullable Map<String, String> ranges);
+    }
+
+    private void requestRanges(String granularity, @Nullable String months, RangesCallback callback) {
+        JSONObject header = new JSONObject();
+        try {
+            header.put("datatype", dataType.toString());
+            header.put("granularity", granularity);
+            if (months != null) {
+                header.put("months", months);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace(); // shouldn't happen
+        }
+
+        BackendIO.getRemoteDatasetAsync(BackendIO.RemoteDatasetType.SYNC, header, syncId + "/ranges", new BackendIO.RemoteRequestCompletedCallback() {
+            @Override
+            public void onResponse(JSONObject response) {
+                try {
+                    JSONObject rangesJson = response.getJSONObject("ranges");
+                    Map<String, String> ranges = new HashMap<>();
+                    Iterator<String> keys = rangesJson.keys();
+                    while (keys.hasNext()) {
+                        String range = keys.next();
+                        ranges.put(range, rangesJson.getString(range));
+                    }
+                    callback.onRanges(ranges);
+                } catch (JSONException e) {
+                    Log.w(LOG_TAG, "Invalid range hashes received: " + e);
+                    callback.onRanges(null);
+                }
+            }
+
+            @Override
+            public void onError(int errorStatusCode, String errorMessage) {
+                Log.w(LOG_TAG, "Could not request range hashes (" + errorStatusCode + "): " + errorMessage);
+                callback.onRanges(null);
+            }
+        });
+    }
+
+    /**
+     * @return Ranges of the server, which do not exist locally or have a different hash, in ascending order.
+     * Ranges, which only exist locally, are not included, since there is nothing to download for them.
+     */
+    private static List<String> getDifferingRanges(Map<String, String> serverHashes, Map<String, String> localHashes) {
+        List<String> differingRanges = new ArrayList<>();
+        for (Map.Entry<String, String> serverHash : new TreeMap<>(serverHashes).entrySet()) {
+            if (!serverHash.getValue().equalsIgnoreCase(localHashes.get(serverHash.getKey()))) {
+                differingRanges.add(serverHash.getKey());
+            }
+        }
+        return differingRanges;
+    }
+
+    private static Map<String, String> computeDayHashes(RealmQuery<SyncableData> query) {
+        SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        // Datasets are sorted by remote ID, so the lines of each day are hashed in that order
+        Map<String, MessageDigest> dayDigests = new TreeMap<>();
+        for (SyncableData dataset : query.findAll()) {
+            Date creationDate = dataset.getCreationDate();
+            Date modificationDate = dataset.getModificationDate() != null ? dataset.getModificationDate() : creationDate;
+            String day = dayFormat.format(creationDate);
+
+            MessageDigest digest = dayDigests.get(day);
+            if (digest == null) {
+                digest = newDigest();
+                dayDigests.put(day, digest);
+            }
+            digest.update((dataset.getRemoteId() + "|" + modificationDate.getTime() / 1000 + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        Map<String, String> dayHashes = new TreeMap<>();
+        for (Map.Entry<String, MessageDigest> dayDigest : dayDigests.entrySet()) {
+            dayHashes.put(dayDigest.getKey(), toHex(dayDigest.getValue().digest()));
+        }
+        return dayHashes;
+    }
+
+    private static Map<String, String> computeMonthHashes(Map<String, String> dayHashes) {
+        // dayHashes is sorted by day, so the lines of each month are hashed in that order
+        Map<String, MessageDigest> monthDigests = new TreeMap<>();
+        for (Map.Entry<String, String> dayHash : dayHashes.entrySet()) {
+            String month = dayHash.getKey().substring(0, 7);
+            MessageDigest digest = monthDigests.get(month);
+            if (digest == null) {
+                digest = newDigest();
+                monthDigests.put(month, digest);
+            }
+            digest.update((dayHash.getKey() + "|" + dayHash.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        Map<String, String> monthHashes = new TreeMap<>();
+        for (Map.Entry<String, MessageDigest> monthDigest : monthDigests.entrySet()) {
+            monthHashes.put(monthDigest.getKey(), toHex(monthDigest.getValue().digest()));
+        }
+        return monthHashes;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is available on all Android versions
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format(Locale.US, "%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,228 @@
+package de.thwildau.f4f.studycompanion.datamodel.realmobjects;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.thwildau.f4f.studycompanion.backend.SensorDataWireEncoder;
+import de.thwildau.f4f.studycompanion.datamodel.SensorColumnCodec;
+import io.realm.RealmObject;
+import io.realm.annotations.RealmClass;
+
+/**
+ * Samples of a SensorData dataset (e.g. one minute of in-ear sensor data), stored as typed columns.
+ * Each column is a blob compressed by {@link SensorColumnCodec}, so storing a chunk does not require boxing
+ * each sample into a JSON array and formatting it as text. Columns are only decoded when they are read, e.g. on upload.
+ * <p>
+ * A chunk is embedded in the {@link SyncableData} holding its sync state and is deleted along with it.
+ * For upload, the columns are serialized directly into the JSON fields of a SensorData dataset
+ * ("type", "timestamps", "values", "rr_history", "ear_position_quality", "new_firmware").
+ */
+@RealmClass(embedded = true)
+public class SensorChunk extends RealmObject {
+
+    private String sensorType;
+    private boolean newFirmware = false;
+    private int sampleCount = 0;
+
+    private byte[] timestamps;
+    private byte[] intValues = null; // if the sensor values are integral, e.g. BPM
+    private byte[] floatValues = null; // if the sensor values are floating point, e.g. temperature
+    private byte[] earPositionQuality = null;
+    private byte[] rrCounts = null; // number of RR values of each sample
+    private byte[] rrValues = null; // RR values of all samples, concatenated
+
+    public SensorChunk() { }
+
+    /**
+     * @param sensorType Value of the "type" field of the SensorData dataset, e.g. "Temperature".
+     * @param timestamps Timestamp of each sample in milliseconds. Defines the number of samples.
+     */
+    public SensorChunk(String sensorType, long[] timestamps) {
+        this.sensorType = sensorType;
+        this.sampleCount = timestamps.length;
+        this.timestamps = SensorColumnCodec.encodeTimestamps(timestamps);
+    }
+
+    public void setIntValues(int[] values) {
+        checkSampleCount(values.length);
+        intValues = SensorColumnCodec.encodeInts(values);
+        floatValues = null;
+    }
+
+    public void setFloatValues(float[] values) {
+        checkSampleCount(values.length);
+        floatValues = SensorColumnCodec.encodeFloats(values);
+        intValues = null;
+    }
+
+    public void setEarPositionQuality(int[] values) {
+        checkSampleCount(values.length);
+        earPositionQuality = SensorColumnCodec.encodeRunLengths(values);
+    }
+
+    /**
+     * @param rrHistory RR values of each sample.
+     */
+    public void setRrHistory(float[][] rrHistory) {
+        checkSampleCount(rrHistory.length);
+        int[] counts = new int[rrHistory.length];
+        int total = 0;
+        for (int i = 0; i < rrHistory.length; i++) {
+            counts[i] = rrHistory[i].length;
+            total += counts[i];
+        }
+
+        float[] values = new float[total];
+        int offset = 0;
+        for (float[] sampleValues : rrHistory) {
+            System.arraycopy(sampleValues, 0, values, offset, sampleValues.length);
+            offset += sampleValues.length;
+        }
+
+        rrCounts = SensorColumnCodec.encodeRunLengths(counts);
+        rrValues = SensorColumnCodec.encodeFloats(values);
+    }
+
+    public void setNewFirmware(boolean newFirmware) {
+        this.newFirmware = newFirmware;
+    }
+
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    public boolean isNewFirmware() {
+        return newFirmware;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public long[] getTimestamps() {
+        return SensorColumnCodec.decodeTimestamps(timestamps);
+    }
+
+    /**
+     * @return The integral sensor values, or null if the values are floating point or not set.
+     */
+    public int[] getIntValues() {
+        return intValues == null ? null : SensorColumnCodec.decodeInts(intValues);
+    }
+
+    /**
+     * @return The floating point sensor values, or null if the values are integral or not set.
+     */
+    public float[] getFloatValues() {
+        return floatValues == null ? null : SensorColumnCodec.decodeFloats(floatValues);
+    }
+
+    public int[] getEarPositionQuality() {
+        return earPositionQuality == null ? null : SensorColumnCodec.decodeRunLengths(earPositionQuality);
+    }
+
+    public float[][] getRrHistory() {
+        if (rrCounts == null) {
+            return null;
+        }
+
+        int[] counts = SensorColumnCodec.decodeRunLengths(rrCounts);
+        float[] values = SensorColumnCodec.decodeFloats(rrValues);
+        float[][] rrHistory = new float[counts.length][];
+        int offset = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] < 0 || counts[i] > values.length - offset) {
+                throw new IllegalArgumentException("RR counts do not match the " + values.length + " RR values.");
+            }
+            rrHistory[i] = new float[counts[i]];
+            System.arraycopy(values, offset, rrHistory[i], 0, counts[i]);
+            offset += counts[i];
+        }
+        return rrHistory;
+    }
+
+    /**
+     * @return The fields of the SensorData dataset as JSON, as uploaded to the server.
+     */
+    public JSONObject toJsonObject() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("type", sensorType);
+
+        JSONArray timestampsJson = new JSONArray();
+        for (long timestamp : getTimestamps()) {
+            timestampsJson.put(timestamp);
+        }
+        jsonObject.put("timestamps", timestampsJson);
+
+        if (intValues != null) {
+            jsonObject.put("values", toJsonArray(getIntValues()));
+        } else if (floatValues != null) {
+            jsonObject.put("values", toJsonArray(getFloatValues()));
+        }
+
+        if (rrCounts != null) {
+            JSONArray rrHistoryJson = new JSONArray();
+            for (float[] sampleValues : getRrHistory()) {
+                rrHistoryJson.put(toJsonArray(sampleValues));
+            }
+            jsonObject.put("rr_history", rrHistoryJson);
+        }
+
+        if (earPositionQuality != null) {
+            jsonObject.put("ear_position_quality", toJsonArray(getEarPositionQuality()));
+        }
+
+        jsonObject.put("new_firmware", newFirmware);
+        return jsonObject;
+    }
+
+    /**
+     * @return The SensorData dataset in the binary format of {@link SensorDataWireEncoder}, encoded directly from the columns.
+     */
+    public byte[] toWirePayload() {
+        int fieldCount = 3 + (intValues != null || floatValues != null ? 1 : 0) + (rrCounts != null ? 1 : 0) + (earPositionQuality != null ? 1 : 0);
+        SensorDataWireEncoder encoder = SensorDataWireEncoder.beginObject(fieldCount)
+                .putString("type", sensorType)
+                .putIntegerColumn("timestamps", getTimestamps());
+
+        if (intValues != null) {
+            encoder.putIntegerColumn("values", getIntValues());
+        } else if (floatValues != null) {
+            encoder.putDecimalColumn("values", getFloatValues());
+        }
+
+        if (rrCounts != null) {
+            encoder.putDecimalColumns("rr_history", getRrHistory());
+        }
+
+        if (earPositionQuality != null) {
+            encoder.putIntegerColumn("ear_position_quality", getEarPositionQuality());
+        }
+
+        return encoder.putBoolean("new_firmware", newFirmware).toByteArray();
+    }
+
+    private void checkSampleCount(int count) {
+        if (count != sampleCount) {
+            throw new IllegalArgumentException("Expected " + sampleCount + " samples, got " + count + ".");
+        }
+    }
+
+    private static JSONArray toJsonArray(int[] values) {
+        JSONArray array = new JSONArray();
+        for (int value : values) {
+            array.put(value);
+        }
+        return array;
+    }
+
+    private static JSONArray toJsonArray(float[] values) {
+        JSONArray array = new JSONArray();
+        for (float value : values) {
+            // as Float object, so it is formatted by its shortest representation instead of the one of a double
+            array.put(Float.valueOf(value));
+        }
+        return array;
+    }
+}
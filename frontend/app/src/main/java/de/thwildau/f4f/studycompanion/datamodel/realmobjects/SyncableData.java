@@ -1,5 +1,7 @@
 package de.thwildau.f4f.studycompanion.datamodel.realmobjects;
 
+import android.util.Base64;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -8,6 +10,7 @@ import java.util.Date;
 
 import de.thwildau.f4f.studycompanion.Utils;
 import de.thwildau.f4f.studycompanion.backend.BackendIO;
+import de.thwildau.f4f.studycompanion.backend.SensorDataWireEncoder;
 import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
 import io.realm.Realm;
 import io.realm.RealmObject;
@@ -17,26 +20,35 @@ import io.realm.annotations.Required;
 
 public class SyncableData extends RealmObject {
 
+    @Index
     private String dataTypeStr;
 
     private String jsonData = null; // this keeps all the effective data
 
+    private SensorChunk sensorChunk = null; // keeps the effective data of SensorData instead of jsonData, if set
+
     @PrimaryKey
     private Long localId;
 
     @Index
     private String remoteId = null;
 
+    @Index
     private String userId = BackendIO.getCurrentUser().id; // used only for local data assignment (in case multiple users sign in into the app on same device?)
 
+    @Index
     private String lastSyncId = null;
 
     @Required
     private Date creationDate = new Date();
     private Date modificationDate = null;
 
+    @Index
     private Boolean markedForDeletion = false;
 
+    @Index
+    private Date effectiveDay = null; // value of the "effective_day" field of daily UserData, for querying by day
+
     public SyncableData(Realm realm) {
         localId = Utils.getUniqueLocalId(realm, SyncableData.class);
     }
@@ -85,15 +97,40 @@ public class SyncableData extends RealmObject {
             obj.remove("modification_time");
         }
 
+        setEffectiveDay(parseEffectiveDay(obj));
         setDataType(dataType);
         setJsonData(obj.toString());
     }
 
+    /**
+     * @return The date of the "effective_day" field of the given dataset, or null if it has none or it is invalid.
+     */
+    public static Date parseEffectiveDay(JSONObject jsonObject) {
+        String effectiveDayStr = jsonObject.optString("effective_day");
+        if(effectiveDayStr.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return Utils.getServerTimeFormat().parse(effectiveDayStr, true);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
     /**
      * Generates an JSON Object of this Data instance, which can be sent to server via PUT /sync/{sync_id}
      * @return
      */
     public JSONObject toRemoteJsonObject() {
+        return toRemoteJsonObject(false);
+    }
+
+    /**
+     * Same as {@link #toRemoteJsonObject()}, but if binarySensorPayload is set, the data of a SensorData
+     * instance is sent as base64-encoded binary "payload" (see {@link SensorDataWireEncoder}) instead of plain JSON fields.
+     */
+    public JSONObject toRemoteJsonObject(boolean binarySensorPayload) {
 
         JSONObject jsonObject = new JSONObject();
 
@@ -110,7 +147,24 @@ public class SyncableData extends RealmObject {
                 return jsonObject;
             }
 
-            jsonObject = new JSONObject(jsonData);
+            if(sensorChunk != null) {
+                // typed sensor data is serialized directly from its columns
+                if(binarySensorPayload) {
+                    jsonObject.put("encoding", SensorDataWireEncoder.ENCODING_NAME);
+                    jsonObject.put("payload", Base64.encodeToString(sensorChunk.toWirePayload(), Base64.NO_WRAP));
+                } else {
+                    jsonObject = sensorChunk.toJsonObject();
+                }
+            } else {
+                jsonObject = new JSONObject(jsonData);
+            }
+
+            if(binarySensorPayload && sensorChunk == null && getDataType() == DataType.SensorData) {
+                byte[] payload = SensorDataWireEncoder.encode(jsonObject);
+                jsonObject = new JSONObject();
+                jsonObject.put("encoding", SensorDataWireEncoder.ENCODING_NAME);
+                jsonObject.put("payload", Base64.encodeToString(payload, Base64.NO_WRAP));
+            }
 
             if(getRemoteId() != null) {
                 jsonObject.put("id", remoteId);
@@ -189,6 +243,14 @@ public class SyncableData extends RealmObject {
         this.markedForDeletion = markedForDeletion;
     }
 
+    public Date getEffectiveDay() {
+        return effectiveDay;
+    }
+
+    public void setEffectiveDay(Date effectiveDay) {
+        this.effectiveDay = effectiveDay;
+    }
+
     public DataType getDataType() {
         return DataType.valueOf(dataTypeStr);
     }
@@ -204,4 +266,12 @@ public class SyncableData extends RealmObject {
     public void setJsonData(String jsonData) {
         this.jsonData = jsonData;
     }
+
+    public SensorChunk getSensorChunk() {
+        return sensorChunk;
+    }
+
+    public void setSensorChunk(SensorChunk sensorChunk) {
+        this.sensorChunk = sensorChunk;
+    }
 }
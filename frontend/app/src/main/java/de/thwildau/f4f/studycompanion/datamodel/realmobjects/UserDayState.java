@@ -0,0 +1,76 @@
+package de.thwildau.f4f.studycompanion.datamodel.realmobjects;
+
+import de.thwildau.f4f.studycompanion.Utils;
+import io.realm.RealmObject;
+import io.realm.annotations.Index;
+import io.realm.annotations.PrimaryKey;
+import io.realm.annotations.Required;
+
+/**
+ * Precomputed state of the daily questions of one day of a user, maintained by
+ * {@link de.thwildau.f4f.studycompanion.datamodel.DayStateProvider} whenever UserData is written.
+ */
+public class UserDayState extends RealmObject {
+
+    @Required
+    @PrimaryKey
+    private String id; // "<user ID>/<day>"
+
+    @Index
+    private String userId;
+
+    private String day; // yyyy-MM-dd, local time
+
+    private String fillingState = Utils.UserInputState.NO_DATA.name();
+
+    private Boolean questionsAvailable = null; // null, if not determined yet
+
+    private String questionsStudyBegin = null; // study begin date, for which questionsAvailable was determined
+
+    public UserDayState() { }
+
+    public UserDayState(String userId, String day) {
+        this.id = userId + "/" + day;
+        this.userId = userId;
+        this.day = day;
+    }
+
+
+    /* Getters and Setters */
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getDay() {
+        return day;
+    }
+
+    public Utils.UserInputState getFillingState() {
+        return Utils.UserInputState.valueOf(fillingState);
+    }
+
+    public void setFillingState(Utils.UserInputState fillingState) {
+        this.fillingState = fillingState.name();
+    }
+
+    public Boolean getQuestionsAvailable() {
+        return questionsAvailable;
+    }
+
+    public void setQuestionsAvailable(Boolean questionsAvailable) {
+        this.questionsAvailable = questionsAvailable;
+    }
+
+    public String getQuestionsStudyBegin() {
+        return questionsStudyBegin;
+    }
+
+    public void setQuestionsStudyBegin(String questionsStudyBegin) {
+        this.questionsStudyBegin = questionsStudyBegin;
+    }
+}
@@ -4,9 +4,6 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Date;
@@ -16,7 +13,7 @@ import java.util.List;
 import de.thwildau.f4f.studycompanion.Utils;
 import de.thwildau.f4f.studycompanion.backend.BackendIO;
 import de.thwildau.f4f.studycompanion.datamodel.DataManager;
-import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SensorChunk;
 import de.thwildau.f4f.studycompanion.notifications.NotificationOrganizer;
 
 public class CosinussDataRecorder {
@@ -98,72 +95,66 @@ public class CosinussDataRecorder {
         }
 
         new Thread(() -> {
-            // Create two SensorData JSONObjects (typed HeartMeasurementEar and Temperature)
+            // Create two typed SensorData chunks (HeartMeasurementEar and Temperature)
             // and store them in local Realm in Background
 
             try {
-                JSONObject heartRateData = new JSONObject();
-                heartRateData.put("type", "HeartMeasurementEar");
-
-                JSONObject temperatureData = new JSONObject();
-                temperatureData.put("type", "Temperature");
+                int numValidDatasets = 0;
+                for (Dataset dataset : cache) {
+                    if (isValid(dataset)) {
+                        numValidDatasets++;
+                    }
+                }
 
-                JSONArray heartRateBPM = new JSONArray();
-                JSONArray heartRateRRlists = new JSONArray();
-                JSONArray temperatures = new JSONArray();
-                JSONArray timestamps = new JSONArray();
-                JSONArray poisitioningQualityValues = new JSONArray();
+                if (numValidDatasets == 0) {
+                    // no valid data recorded
+                    return;
+                }
 
-                boolean validDatasets = false;
+                long[] timestamps = new long[numValidDatasets];
+                int[] heartRateBPM = new int[numValidDatasets];
+                float[][] heartRateRRlists = new float[numValidDatasets][];
+                float[] temperatures = new float[numValidDatasets];
+                int[] positioningQualityValues = new int[numValidDatasets];
                 boolean isNewFirmware = false;
 
+                int i = 0;
                 for (Dataset dataset : cache) {
-                    if (dataset.hrm.getBpm() <= 20) {
-                        // reject whole dataset, if no realistic BPM value was be measured
-                        // Miguel Indurain holds world record for the slowest human heart rate ever measured with 28 BPM! ;-)
+                    if (!isValid(dataset)) {
                         continue;
                     }
 
                     // generate RR sublist for this dataset
-                    JSONArray rrListArray = new JSONArray();
                     List<Float> rrList = dataset.hrm.getRRValues();
-                    for (Float rrValue : rrList) {
-                        rrListArray.put(rrValue);
+                    heartRateRRlists[i] = new float[rrList.size()];
+                    for (int j = 0; j < rrList.size(); j++) {
+                        heartRateRRlists[i][j] = rrList.get(j);
                     }
 
-                    // append dataset parts to JSON arrays
-                    heartRateBPM.put(dataset.hrm.getBpm());
-                    heartRateRRlists.put(rrListArray);
-                    temperatures.put(dataset.temperature);
-                    timestamps.put(dataset.timestamp);
-                    poisitioningQualityValues.put(dataset.positioningQuality);
+                    heartRateBPM[i] = dataset.hrm.getBpm();
+                    temperatures[i] = dataset.temperature;
+                    timestamps[i] = dataset.timestamp;
+                    positioningQualityValues[i] = dataset.positioningQuality;
 
                     isNewFirmware = dataset.isNewFirmware;
                         // only the value of the last dataset is used here, since it should be equal for all
-
-                    validDatasets = true;
-                }
-
-                if (!validDatasets) {
-                    // no valid data recorded
-                    return;
+                    i++;
                 }
 
-                heartRateData.put("values", heartRateBPM);
-                heartRateData.put("rr_history", heartRateRRlists);
-                temperatureData.put("values", temperatures);
-
-                heartRateData.put("timestamps", timestamps);
-                temperatureData.put("timestamps", timestamps);
-                heartRateData.put("ear_position_quality", poisitioningQualityValues);
-                temperatureData.put("ear_position_quality", poisitioningQualityValues);
+                SensorChunk heartRateData = new SensorChunk("HeartMeasurementEar", timestamps);
+                heartRateData.setIntValues(heartRateBPM);
+                heartRateData.setRrHistory(heartRateRRlists);
+                heartRateData.setEarPositionQuality(positioningQualityValues);
+                heartRateData.setNewFirmware(isNewFirmware);
 
-                temperatureData.put("new_firmware", isNewFirmware);
-                heartRateData.put("new_firmware", isNewFirmware);
+                SensorChunk temperatureData = new SensorChunk("Temperature", timestamps);
+                temperatureData.setFloatValues(temperatures);
+                temperatureData.setEarPositionQuality(positioningQualityValues);
+                temperatureData.setNewFirmware(isNewFirmware);
 
                 // Store data in local Realm
-                DataManager.updateOrInsertData(DataType.SensorData, heartRateData);
-                DataManager.updateOrInsertData(DataType.SensorData, temperatureData);
+                DataManager.insertSensorChunk(heartRateData);
+                DataManager.insertSensorChunk(temperatureData);
 
                 Log.d(LOG_TAG, "Stored " + cache.size() + " records in in Realm (split in one HeartMeasurementEar and one Temperature SensorData data set).");
                 lastSyncTime.setValue(new Date());
@@ -172,14 +163,22 @@ public class CosinussDataRecorder {
                 Log.w(LOG_TAG, "Collected Cosinuss sensor data were dismissed, since current user is either not logged in or not a participant.");
             } catch (Exception e) {
                 // shouldn't actually happen
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                e.printStackTrace(pw);
-                BackendIO.serverLog(Log.ERROR, LOG_TAG,"ERROR processing In-Ear datasets: " + e + "\n  Stack Trace: " + sw);
+                BackendIO.serverLog(Log.ERROR, LOG_TAG, "ERROR processing In-Ear datasets: " + e.getClass().getName(), () -> {
+                    StringWriter sw = new StringWriter();
+                    PrintWriter pw = new PrintWriter(sw);
+                    e.printStackTrace(pw);
+                    return "ERROR processing In-Ear datasets: " + e + "\n  Stack Trace: " + sw;
+                });
             }
         }).start();
     }
 
+    private static boolean isValid(Dataset dataset) {
+        // reject whole dataset, if no realistic BPM value was be measured
+        // Miguel Indurain holds world record for the slowest human heart rate ever measured with 28 BPM! ;-)
+        return dataset.hrm.getBpm() > 20;
+    }
+
     private void tryAddCurrentDatasetToCache() {
 
         try {
@@ -13,6 +13,7 @@ import android.widget.TextView;
 import org.json.JSONObject;
 
 import java.util.Date;
+import java.util.List;
 
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
@@ -21,6 +22,7 @@ import androidx.fragment.app.Fragment;
 import de.thwildau.f4f.studycompanion.R;
 import de.thwildau.f4f.studycompanion.Utils;
 import de.thwildau.f4f.studycompanion.backend.AppUpdater;
+import de.thwildau.f4f.studycompanion.backend.BackendIO;
 import de.thwildau.f4f.studycompanion.datamodel.DataManager;
 import de.thwildau.f4f.studycompanion.notifications.NotificationOrganizer;
 import de.thwildau.f4f.studycompanion.ui.customform.ListCustomFieldEditorActivity;
@@ -54,6 +56,7 @@ public class DevFragment extends Fragment {
 
         rootView.findViewById(R.id.btnShowListEditor).setOnClickListener(this::showListEditor);
         rootView.findViewById(R.id.btnShowCosinussReminder).setOnClickListener(this::showCosinussReminder);
+        rootView.findViewById(R.id.btnShowBackendMetrics).setOnClickListener(this::showBackendMetrics);
         rootView.findViewById(R.id.btnDownloadUpdate).setOnClickListener(this::downloadUpdate);
         rootView.findViewById(R.id.btnInstallUpdate).setOnClickListener(this::installUpdate);
 
@@ -82,6 +85,23 @@ public class DevFragment extends Fragment {
     }
 
 
+    private void showBackendMetrics(View v) {
+        StringBuilder metrics = new StringBuilder();
+        metrics.append("-- ENDPOINTS --\n").append(BackendIO.getEndpointMetrics().getReport());
+        metrics.append("\n\n-- REQUEST LANES --\n").append(BackendIO.getRequestLaneReport());
+
+        List<JSONObject> syncMetricsHistory = DataManager.getSyncMetricsHistory();
+        if (!syncMetricsHistory.isEmpty()) {
+            metrics.append("\n\n-- LAST SYNC --\n").append(syncMetricsHistory.get(syncMetricsHistory.size() - 1));
+        }
+
+        new AlertDialog.Builder(getActivity())
+                .setTitle("Backend Metrics")
+                .setMessage(metrics.toString())
+                .setPositiveButton(R.string.ok, null)
+                .show();
+    }
+
     private void downloadUpdate(View v) {
         AppUpdater.tryDownloadNewApk();
     }
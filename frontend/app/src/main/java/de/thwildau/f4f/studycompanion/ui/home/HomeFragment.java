@@ -29,7 +29,6 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 
 import de.thwildau.f4f.studycompanion.R;
 import de.thwildau.f4f.studycompanion.StudyCompanion;
@@ -38,6 +37,7 @@ import de.thwildau.f4f.studycompanion.backend.AppUpdater;
 import de.thwildau.f4f.studycompanion.backend.BackendIO;
 import de.thwildau.f4f.studycompanion.background.WorkerBase;
 import de.thwildau.f4f.studycompanion.datamodel.DataManager;
+import de.thwildau.f4f.studycompanion.datamodel.DayStateProvider;
 import de.thwildau.f4f.studycompanion.datamodel.SchemaProvider;
 import de.thwildau.f4f.studycompanion.datamodel.User;
 import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
@@ -181,9 +181,8 @@ public class HomeFragment extends Fragment {
 
 
     private JSONObject obtainTodaysUserData() throws UnobtainableUserDataException {
-        // Read all collected user question data from local database
+        // Read today's user question data from local database
         try {
-            List<JSONObject> userDataObjects = DataManager.getAllDatasets(DataType.UserData);
             String anamnesisDataStr = BackendIO.getCurrentUser().anamnesisData;
             JSONObject anamnesisData = new JSONObject(anamnesisDataStr);
 
@@ -204,16 +203,7 @@ public class HomeFragment extends Fragment {
                 throw new UnobtainableUserDataException(); // Not in study period
             }
 
-            today = Utils.setTimeToZero(today);
-
-            for(JSONObject obj : userDataObjects) {
-                Date effectiveDay = Utils.setTimeToZero(Utils.getServerTimeFormat().parse(obj.getString("effective_day")));
-                if(today.equals(effectiveDay)) {
-                    return obj;
-                }
-            }
-
-            return null; // no data for today available yet.
+            return DataManager.getUserDataForEffectiveDay(today); // null, if no data for today available yet.
 
         } catch (JSONException | ParseException | NullPointerException | DataManager.NoPermissionException e) {
             e.printStackTrace();
@@ -317,7 +307,7 @@ public class HomeFragment extends Fragment {
 
         buttonAnswer.setOnClickListener(this::onButtonDailyQuestionPress);
 
-        if(!Utils.existQuestions(new Date())) {
+        if(!DayStateProvider.areQuestionsAvailable(new Date())) {
             container.setVisibility(View.GONE); // No questions for today
             return;
         }
@@ -9,13 +9,14 @@ import org.json.JSONObject;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import de.thwildau.f4f.studycompanion.Utils;
 import de.thwildau.f4f.studycompanion.backend.BackendIO;
 import de.thwildau.f4f.studycompanion.datamodel.DataManager;
+import de.thwildau.f4f.studycompanion.datamodel.DayStateProvider;
 import de.thwildau.f4f.studycompanion.datamodel.enums.DataType;
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.UserDayState;
 
 public class QuestionsViewModel extends ViewModel {
     private static String LOG_TAG = "QuestionsViewModel";
@@ -40,24 +41,28 @@ public class QuestionsViewModel extends ViewModel {
 
     private MutableLiveData<StudyTime> mStudyTime;
 
-    private Map<Date, JSONObject> userDataCache = new HashMap<>();
+    private Map<Date, UserDayState> dayStateCache = new HashMap<>();
 
     public QuestionsViewModel() {
         mStudyTime = new MutableLiveData<>();
     }
 
     public Utils.UserInputState getUserInputStateForDay(Date day) {
-        if(!userDataCache.containsKey(day)) {
-            // no dataset existing yet for this day
+        UserDayState dayState = dayStateCache.get(day);
+        if(dayState == null) {
+            // day not in study period
             return Utils.UserInputState.NO_DATA;
         }
-        JSONObject dayData = userDataCache.get(day);
 
-        return Utils.getUserInputState(dayData);
+        return dayState.getFillingState();
     }
 
     public JSONObject getDatasetForDay(Date day) {
-        return userDataCache.get(day);
+        try {
+            return DataManager.getUserDataForEffectiveDay(day);
+        } catch (DataManager.NoPermissionException e) {
+            return null;
+        }
     }
 
     public void updateOrInsertUserData(String dataString) {
@@ -73,14 +78,7 @@ public class QuestionsViewModel extends ViewModel {
     public void refreshAllData() {
         try {
 
-            // Read all collected user question data from local database
-            List<JSONObject> userDataObjects = DataManager.getAllDatasets(DataType.UserData);
-
-            userDataCache.clear();
-            for(JSONObject obj : userDataObjects) {
-                Date effectiveDay = Utils.setTimeToZero(Utils.getServerTimeFormat().parse(obj.getString("effective_day")));
-                userDataCache.put(effectiveDay, obj);
-            }
+            dayStateCache.clear();
 
             // read study time from current user
             String anamnesisDataStr = BackendIO.getCurrentUser().anamnesisData;
@@ -102,6 +100,9 @@ public class QuestionsViewModel extends ViewModel {
             Date startDate = Utils.setTimeToZero(Utils.getServerTimeFormat().parse(startDateStr));
             Date endDate = Utils.setTimeToZero(Utils.getServerTimeFormat().parse(endDateStr));
 
+            // Read the precomputed states of the days of the study period from local database
+            dayStateCache.putAll(DayStateProvider.getDayStates(startDate, endDate));
+
             mStudyTime.setValue(new StudyTime(startDate, endDate));
 
         } catch(IllegalStateException | JSONException | ParseException | DataManager.NoPermissionException e) {
@@ -110,6 +110,7 @@ public class ParticipantProfileFragment extends Fragment {
         participantProfileViewModel.getIsLoadingData().observe(viewLifecycleOwner, this::setLoading );
         participantProfileViewModel.getParticipantData().observe(viewLifecycleOwner, pParticipantData -> { participantData = pParticipantData; createCustomFormFragmentForParticipantData(); });
         participantProfileViewModel.getSaveSuccessful().observe(viewLifecycleOwner, this::handleSaveSuccess);
+        participantProfileViewModel.getSavedOffline().observe(viewLifecycleOwner, this::handleSavedOffline);
 
         if(savedInstanceState != null && savedInstanceState.getBoolean(DATA_IS_LOADED)) {
             createCustomFormFragmentForParticipantData(); // Restore Fragment from former state
@@ -185,4 +186,10 @@ public class ParticipantProfileFragment extends Fragment {
         }
     }
 
+    private void handleSavedOffline(boolean savedOffline) {
+        if(savedOffline) {
+            Toast.makeText(getContext(), R.string.participant_profile_saved_offline_toast_message, Toast.LENGTH_LONG).show();
+        }
+    }
+
 }
\ No newline at end of file
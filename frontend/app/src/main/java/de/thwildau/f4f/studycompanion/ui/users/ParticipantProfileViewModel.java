@@ -22,6 +22,7 @@ public class ParticipantProfileViewModel extends ViewModel {
     private final MutableLiveData<String> mParticipantData;
     private final MutableLiveData<Boolean> mIsLoadingData;
     private final MutableLiveData<Boolean> mSaveSuccessful;
+    private final MutableLiveData<Boolean> mSavedOffline;
 
 
     public ParticipantProfileViewModel() {
@@ -30,6 +31,7 @@ public class ParticipantProfileViewModel extends ViewModel {
         mParticipantData = new MutableLiveData<>(null);
         mIsLoadingData = new MutableLiveData<>(false);
         mSaveSuccessful = new MutableLiveData<>(false);
+        mSavedOffline = new MutableLiveData<>(false);
     }
 
     public void loadParticipantDataAsync() {
@@ -79,6 +81,7 @@ public class ParticipantProfileViewModel extends ViewModel {
         mErrorOnSave.postValue(null);
         mIsLoadingData.postValue(true);
         mSaveSuccessful.postValue(false);
+        mSavedOffline.postValue(false);
 
         // Pepare user JSON object only containing user ID and updated anamnesis_data
         JSONObject newUserData = new JSONObject();
@@ -93,8 +96,14 @@ public class ParticipantProfileViewModel extends ViewModel {
             return;
         }
 
-        // send updated data to server
-        BackendIO.sendRemoteDatasetAsync(newUserData, BackendIO.RemoteDatasetType.USER, new BackendIO.RemoteRequestCompletedCallback() {
+        // send updated data to server, or as soon as the server is reachable again
+        BackendIO.sendRemoteDatasetJournaled(newUserData, BackendIO.RemoteDatasetType.USER, null, new BackendIO.JournaledRequestCompletedCallback() {
+                    @Override
+                    public void onJournaled() {
+                        mIsLoadingData.postValue(false);
+                        mSavedOffline.postValue(true);
+                    }
+
                     @Override
                     public void onResponse(JSONObject response) {
                         mIsLoadingData.postValue(false);
@@ -133,4 +142,8 @@ public class ParticipantProfileViewModel extends ViewModel {
     public MutableLiveData<Boolean> getSaveSuccessful() {
         return mSaveSuccessful;
     }
+
+    public MutableLiveData<Boolean> getSavedOffline() {
+        return mSavedOffline;
+    }
 }
@@ -0,0 +1,80 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import de.thwildau.f4f.studycompanion.datamodel.realmobjects.SensorChunk;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the f4f-binary-v1 payloads of known sensor chunks byte by byte, since the server decodes them independently.
+ */
+public class SensorDataWireEncoderTest {
+
+    @Test
+    public void heartRateChunk_isEncoded() {
+        SensorChunk chunk = new SensorChunk("HeartMeasurementEar", new long[]{1000, 2000, 3000});
+        chunk.setIntValues(new int[]{70, 72, 71});
+        chunk.setRrHistory(new float[][]{{0.8f, 0.85f}, {0.9f}, {}});
+        chunk.setEarPositionQuality(new int[]{100, 100, 90});
+        chunk.setNewFirmware(true);
+
+        byte[] expected = concat(
+                bytes(0x01),                                        // format version
+                bytes(0x07, 6),                                     // object with 6 fields
+                key("type"), bytes(0x05, 19), ascii("HeartMeasurementEar"),
+                key("timestamps"), bytes(0x08, 3, 0xD0, 0x0F, 0xD0, 0x0F, 0xD0, 0x0F), // 1000, +1000, +1000
+                key("values"), bytes(0x08, 3, 0x8C, 0x01, 0x04, 0x01),                 // 70, +2, -1
+                key("rr_history"), bytes(0x06, 3,                                      // array of 3 columns
+                        0x09, 2, 2, 0xA0, 0x01, 0x0A,                                  // 80, +5 (scale 2)
+                        0x09, 1, 1, 0x12,                                              // 9 (scale 1)
+                        0x06, 0),                                                      // empty
+                key("ear_position_quality"), bytes(0x08, 3, 0xC8, 0x01, 0x00, 0x13),   // 100, +0, -10
+                key("new_firmware"), bytes(0x02));
+
+        assertArrayEquals(expected, chunk.toWirePayload());
+    }
+
+    @Test
+    public void temperatureChunk_isEncoded() {
+        SensorChunk chunk = new SensorChunk("Temperature", new long[]{1000, 2000});
+        chunk.setFloatValues(new float[]{36.5f, 36.55f});
+
+        byte[] expected = concat(
+                bytes(0x01),                                        // format version
+                bytes(0x07, 4),                                     // object with 4 fields
+                key("type"), bytes(0x05, 11), ascii("Temperature"),
+                key("timestamps"), bytes(0x08, 2, 0xD0, 0x0F, 0xD0, 0x0F), // 1000, +1000
+                key("values"), bytes(0x09, 2, 2, 0x84, 0x39, 0x0A),        // 3650, +5 (scale 2)
+                key("new_firmware"), bytes(0x01));
+
+        assertArrayEquals(expected, chunk.toWirePayload());
+    }
+
+    private static byte[] key(String key) {
+        return concat(bytes(key.length()), ascii(key));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
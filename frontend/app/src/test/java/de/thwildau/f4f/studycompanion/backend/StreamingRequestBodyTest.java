@@ -0,0 +1,104 @@
+package de.thwildau.f4f.studycompanion.backend;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends streaming request bodies to a local HTTP server and checks what the server receives.
+ */
+public class StreamingRequestBodyTest {
+    private static final String BODY = "{\"data\":[\"äöü\",1,2,3]}";
+
+    private HttpServer server;
+    private String receivedContentEncoding;
+    private byte[] receivedBody;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            receivedContentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            receivedBody = readAll(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void compressedBody_isSentWithContentEncoding() throws IOException {
+        HttpURLConnection connection = openConnection();
+        StreamingRequestBody body = StreamingRequestBody.write(connection, true, writer -> writer.write(BODY));
+
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("gzip", receivedContentEncoding);
+        assertEquals(BODY, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(receivedBody))), StandardCharsets.UTF_8));
+        assertEquals(BODY.getBytes(StandardCharsets.UTF_8).length, body.getBytes());
+    }
+
+    @Test
+    public void uncompressedBody_isSentAsIs() throws IOException {
+        HttpURLConnection connection = openConnection();
+        StreamingRequestBody body = StreamingRequestBody.write(connection, false, writer -> writer.write(BODY));
+
+        assertEquals(200, connection.getResponseCode());
+        assertNull(receivedContentEncoding);
+        assertEquals(BODY, new String(receivedBody, StandardCharsets.UTF_8));
+        assertEquals(BODY.getBytes(StandardCharsets.UTF_8).length, body.getBytes());
+    }
+
+    @Test
+    public void networkWriteTime_excludesSerialization() throws IOException {
+        HttpURLConnection connection = openConnection();
+        StreamingRequestBody body = StreamingRequestBody.write(connection, true, writer -> {
+            try {
+                // a slow serialization, e.g. of datasets read from the local database
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            writer.write(BODY);
+        });
+
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(body.getNetworkWriteMs() < 500);
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/sync");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        return connection;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,139 @@
+package de.thwildau.f4f.studycompanion.datamodel;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the sensor column encodings and decoding of corrupt columns.
+ */
+public class SensorColumnCodecTest {
+
+    @Test
+    public void timestamps_roundTrip() {
+        long start = 1650000000000L;
+        long[] values = new long[120];
+        for (int i = 0; i < values.length; i++) {
+            // about one sample per second, with jitter
+            values[i] = start + i * 1000L + (i % 7) * 13 - (i % 3) * 5;
+        }
+
+        assertArrayEquals(values, SensorColumnCodec.decodeTimestamps(SensorColumnCodec.encodeTimestamps(values)));
+    }
+
+    @Test
+    public void timestamps_roundTripExtremes() {
+        long[] values = {Long.MIN_VALUE, Long.MAX_VALUE, 0, -1, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        assertArrayEquals(values, SensorColumnCodec.decodeTimestamps(SensorColumnCodec.encodeTimestamps(values)));
+    }
+
+    @Test
+    public void timestamps_roundTripEmptyAndSingle() {
+        assertArrayEquals(new long[0], SensorColumnCodec.decodeTimestamps(SensorColumnCodec.encodeTimestamps(new long[0])));
+        assertArrayEquals(new long[]{42}, SensorColumnCodec.decodeTimestamps(SensorColumnCodec.encodeTimestamps(new long[]{42})));
+    }
+
+    @Test
+    public void ints_roundTrip() {
+        int[] values = {72, 73, 73, 71, 0, -5, Integer.MAX_VALUE, Integer.MIN_VALUE, 80};
+
+        assertArrayEquals(values, SensorColumnCodec.decodeInts(SensorColumnCodec.encodeInts(values)));
+        assertArrayEquals(new int[0], SensorColumnCodec.decodeInts(SensorColumnCodec.encodeInts(new int[0])));
+    }
+
+    @Test
+    public void runLengths_roundTrip() {
+        int[] values = {100, 100, 100, 100, 80, 80, -1, 100, 100, 0};
+
+        assertArrayEquals(values, SensorColumnCodec.decodeRunLengths(SensorColumnCodec.encodeRunLengths(values)));
+        assertArrayEquals(new int[0], SensorColumnCodec.decodeRunLengths(SensorColumnCodec.encodeRunLengths(new int[0])));
+    }
+
+    @Test
+    public void fixedPointFloats_roundTrip() {
+        float[] values = {36.5f, 36.55f, 36.6f, 37.05f, -2.25f, 0f, 36.5f};
+        byte[] encoded = SensorColumnCodec.encodeFloats(values);
+
+        assertEquals(0x01, encoded[0]);
+        assertFloatsEqual(values, SensorColumnCodec.decodeFloats(encoded));
+    }
+
+    @Test
+    public void xorFloats_roundTrip() {
+        float[] values = {(float) Math.PI, 1e30f, 0.123456789f, -0.0f, Float.NaN, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.MIN_VALUE, -Float.MAX_VALUE, 0f};
+        byte[] encoded = SensorColumnCodec.encodeFloats(values);
+
+        assertEquals(0x02, encoded[0]);
+        assertFloatsEqual(values, SensorColumnCodec.decodeFloats(encoded));
+    }
+
+    @Test
+    public void negativeZero_isKept() {
+        float[] values = {-0.0f};
+        float[] decoded = SensorColumnCodec.decodeFloats(SensorColumnCodec.encodeFloats(values));
+
+        assertFloatsEqual(values, decoded);
+    }
+
+    @Test
+    public void nan_isKept() {
+        float[] values = {Float.NaN, Float.intBitsToFloat(0x7FC00001)};
+        float[] decoded = SensorColumnCodec.decodeFloats(SensorColumnCodec.encodeFloats(values));
+
+        assertFloatsEqual(values, decoded);
+    }
+
+    @Test
+    public void emptyFloats_roundTrip() {
+        assertEquals(0, SensorColumnCodec.decodeFloats(SensorColumnCodec.encodeFloats(new float[0])).length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runLengths_exceedingCount_areRejected() {
+        // count 2, value 5 with run length 3
+        SensorColumnCodec.decodeRunLengths(new byte[]{2, 10, 3});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runLengths_ofZero_areRejected() {
+        // count 2, value 5 with run length 0
+        SensorColumnCodec.decodeRunLengths(new byte[]{2, 10, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedColumn_isRejected() {
+        byte[] encoded = SensorColumnCodec.encodeInts(new int[]{1000, 2000, 3000});
+
+        SensorColumnCodec.decodeInts(Arrays.copyOf(encoded, encoded.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void countExceedingColumn_isRejected() {
+        // count of about 2^28 values in a column of 5 bytes
+        SensorColumnCodec.decodeTimestamps(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overlongVarint_isRejected() {
+        byte[] bytes = new byte[12];
+        Arrays.fill(bytes, (byte) 0xFF);
+
+        SensorColumnCodec.decodeInts(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFloatEncoding_isRejected() {
+        SensorColumnCodec.decodeFloats(new byte[]{0x03, 0});
+    }
+
+    private static void assertFloatsEqual(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("value " + i, Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(actual[i]));
+        }
+    }
+}